@@ -1,5 +1,7 @@
 package edu.kufpg.bluetooth.client;
 
+import java.lang.ref.WeakReference;
+
 import android.app.Activity;
 import android.os.AsyncTask;
 
@@ -8,7 +10,8 @@ import android.os.AsyncTask;
  * a regular {@code AsyncTask}, an {@code AsyncActivityTask} can safely interact with its associated
  * {@code Activity} in the UI thread methods ({@link #onPreExecute()}, {@link #onCancelled()}, {@link
  * AsyncTask#onProgressUpdate(Progress...) onProgressUpdate(Progress)}, and {@link #onPostExecute(Result)}),
- * even during or after {@code Activity} rotation or standby.
+ * even during or after {@code Activity} rotation or standby. The task only holds weak references
+ * to its {@code Activity}, so a task that outlives it does not keep it from being collected.
  * @param <A> The {@code Activity} class this task is associated with.
  * @param <Params> The {@code Object} that this task takes as input when calling {@link
  * AsyncTask#execute(Params...) execute(Params...)}.
@@ -22,45 +25,65 @@ public abstract class AsyncActivityTask<A extends Activity, Params, Progress, Re
 	 */
 	private NoGuavaBaseApplication<A> mApp;
 	
+	/** The name under which {@link #mApp} files this task; see {@link #keyOf(Activity)}. */
+	private final String mActivityKey;
+
 	/**
 	 * References this task's associated {@link Activity}. <b>DO NOT</b> access this reference
 	 * directly, since there is a chance that it could be set to null due to {@code Activity}
 	 * rotation or standby. Instead, use {@link #getActivity()} every time that you want to use the
 	 * {@code Activity} to ensure that the correct reference is returned.
 	 */
-	private A mActivity, mInterruptedActivity;
+	private WeakReference<A> mActivity, mInterruptedActivity;
 
 	@SuppressWarnings("unchecked")
 	public AsyncActivityTask(A activity) {
-		mActivity = activity;
-		mInterruptedActivity = activity;
-		mApp = (NoGuavaBaseApplication<A>) mActivity.getApplication();
+		mActivity = new WeakReference<A>(activity);
+		mInterruptedActivity = mActivity;
+		mActivityKey = keyOf(activity);
+		mApp = (NoGuavaBaseApplication<A>) activity.getApplication();
 	}
 
 	/**
 	 * Instead of accessing the connected {@link Activity} directly, use this method to
 	 * ensure that the returned {@code Activity} will always be safe to use, regardless
 	 * of {@code Activity} rotation or standby.
-	 * @return The associated {@code Activity}.
+	 * @return The associated {@code Activity}, or {@code null} if it has been destroyed and
+	 * collected without being replaced.
 	 */
 	public A getActivity() {
-		if (mActivity != null) {
-			return mActivity;
+		A activity = mActivity != null ? mActivity.get() : null;
+		if (activity != null) {
+			return activity;
 		} else {
-			return mInterruptedActivity;
+			return mInterruptedActivity.get();
 		}
 	}
 
+	String getActivityKey() {
+		return mActivityKey;
+	}
+
+	/**
+	 * @return The name that tasks of {@code activity} are filed under, shared by every instance
+	 * of its class so that a rotated {@code Activity} finds its predecessor's tasks.
+	 */
+	static String keyOf(Activity activity) {
+		return activity.getClass().getCanonicalName();
+	}
+
 	/**
 	 * Use this method to reestablish a connection to this task's {@link Activity} after
 	 * rotation or standby.
 	 * @param activity The {@code Activity} to reconnect to.
 	 */
 	public void setActivity(A activity) {
-		mActivity = activity;
-		if (mActivity == null) {
+		if (activity == null) {
+			mActivity = null;
 			onActivityDetached();
 		} else {
+			mActivity = new WeakReference<A>(activity);
+			mInterruptedActivity = mActivity;
 			onActivityAttached();
 		}
 	}
@@ -1,10 +1,7 @@
 package edu.kufpg.bluetooth.client;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import android.annotation.SuppressLint;
@@ -12,27 +9,28 @@ import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
-import android.widget.ScrollView;
-import android.widget.TextView;
+import android.widget.ListView;
 
 public class BluetoothClientActivity extends Activity {
+	private static final String TAG = "BluetoothClientActivity";
 	// Well known SPP UUID
 	public static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 	public static final String MESSAGE = "From Android with love";
 	public static final int REQUEST_ENABLE_BT = 8675309;
 	private static final int REQUEST_CONNECT_DEVICE = 1;
-	private TextView mLogTextView;
+	/** How many of the latest log messages survive rotation; the Bundle must stay small. */
+	private static final int SAVED_LOG_MESSAGES = 200;
+	private LogAdapter mLog;
 	private StickyButton mStartButton;
 	private Button mClearTextButton;
-	private ScrollView mScrollView;
 	private BluetoothAdapter mAdapter;
 	private BluetoothDevice mDevice;
 
@@ -42,8 +40,9 @@ public class BluetoothClientActivity extends Activity {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.main);
 
-		mLogTextView = (TextView) findViewById(R.id.textview_output);
-		mScrollView = (ScrollView) findViewById(R.id.scrollview_output);
+		ListView logView = (ListView) findViewById(R.id.listview_output);
+		mLog = new LogAdapter(logView);
+		logView.setAdapter(mLog);
 		mStartButton = (StickyButton) findViewById(R.id.button_start_server);
 		mStartButton.setOnClickListener(new OnClickListener() {
 			@Override
@@ -60,7 +59,7 @@ public class BluetoothClientActivity extends Activity {
 						Intent serverIntent = new Intent(BluetoothClientActivity.this, DeviceListActivity.class);
 						startActivityForResult(serverIntent, REQUEST_CONNECT_DEVICE);
 					} else {
-						new BluetoothRequestTask(BluetoothClientActivity.this, mDevice).execute(MESSAGE);
+						sendRequest();
 					}
 				}
 			}
@@ -69,7 +68,7 @@ public class BluetoothClientActivity extends Activity {
 		mClearTextButton.setOnClickListener(new OnClickListener() {
 			@Override
 			public void onClick(View v) {
-				mLogTextView.setText("");
+				mLog.clear();
 			}
 		});
 
@@ -81,7 +80,10 @@ public class BluetoothClientActivity extends Activity {
 		}
 
 		if (savedInstanceState != null) {
-			mLogTextView.setText(savedInstanceState.getString("log"));
+			ArrayList<String> log = savedInstanceState.getStringArrayList("log");
+			if (log != null) {
+				mLog.appendAll(log);
+			}
 			mDevice = savedInstanceState.getParcelable("device");
 		}
 	}
@@ -106,7 +108,7 @@ public class BluetoothClientActivity extends Activity {
 				// Get the BluetoothDevice object
 				mDevice = mAdapter.getRemoteDevice(address);
 				// Attempt to connect to the device
-				new BluetoothRequestTask(this, mDevice).execute(MESSAGE);
+				sendRequest();
 			}
 			break;
 		}
@@ -117,7 +119,7 @@ public class BluetoothClientActivity extends Activity {
 	@Override
 	protected void onSaveInstanceState(Bundle outState) {
 		super.onSaveInstanceState(outState);
-		outState.putString("log", mLogTextView.getText().toString());
+		outState.putStringArrayList("log", mLog.tail(SAVED_LOG_MESSAGES));
 		outState.putParcelable("device", mDevice);
 		((NoGuavaBaseApplication<BluetoothClientActivity>) getApplication()).detachActivity(this);
 	}
@@ -127,145 +129,78 @@ public class BluetoothClientActivity extends Activity {
 	public void onResume() {
 		super.onResume();
 		((NoGuavaBaseApplication<BluetoothClientActivity>) getApplication()).attachActivity(this);
+		if (getRequestQueue() != null) {
+			getRequestQueue().setListener(mResultListener);
+		}
+		// Connect to the last device now, so the next request does not wait for it
+		if (mDevice != null && mAdapter != null && mAdapter.isEnabled() && getConnectionManager() != null) {
+			getConnectionManager().keepWarm(mDevice);
+		}
 	}
 
-	void appendMessage(final String newText) {
-		mLogTextView.append("\n" + newText);
-		mScrollView.post(new Runnable() {
-			@Override
-			public void run() {
-				mScrollView.fullScroll(View.FOCUS_DOWN);
-			}
-		});
-	}
-
-	void unstickStartButton() {
-		appendMessage("");
-		mStartButton.unstick();
+	@Override
+	protected void onPause() {
+		super.onPause();
+		if (getRequestQueue() != null) {
+			getRequestQueue().setListener(null);
+		}
+		// No heartbeats or reconnects in the background; an open connection is kept for now
+		if (getConnectionManager() != null) {
+			getConnectionManager().stopKeepingWarm();
+		}
 	}
 
-	private class BluetoothRequestTask extends AsyncActivityTask<BluetoothClientActivity, String, String, String> {
-		private BluetoothDevice mDevice;
-		private BluetoothSocket mSocket;
-		private OutputStream mOutStream;
-		private InputStream mInStream;
-
-		public BluetoothRequestTask(BluetoothClientActivity activity, BluetoothDevice device) {
-			super(activity);
-			mDevice = device;
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		// Connections are shared app-wide, so only tear them down when the user leaves for good
+		if (isFinishing() && getConnectionManager() != null) {
+			getConnectionManager().close();
 		}
+	}
 
-		@Override
-		protected String doInBackground(String... params) {
-			publishProgress("Attempting socket creation...");
-			try {
-				mSocket = mDevice.createRfcommSocketToServiceRecord(BluetoothClientActivity.MY_UUID);
-				publishProgress("Socket created! Attempting socket connection...");
-			} catch (IOException e) {
-				e.printStackTrace();
-				publishProgress("ERROR: Socket creation failed.");
-				return null;
-			}
-
-			mAdapter.cancelDiscovery();
-			try {
-				mSocket.connect();
-			} catch (IOException e) {
-				e.printStackTrace();
-				publishProgress("ERROR: Socket connection failed. Ensure that the server is up and try again.");
-				return null;
-			}
-
-			publishProgress("Attempting to send data to server. Creating output stream...");
-			String message = params[0];
-			if (message == null) {
-				message = "No message provided!";
-			}
-			byte[] messageBytes = message.getBytes();
-			publishProgress("Output stream created! Sending message (" + message + ") to server...");
-			try {
-				mOutStream = mSocket.getOutputStream();
-			} catch (IOException e) {
-				e.printStackTrace();
-				publishProgress("ERROR: Output stream creation failed. Ensure that the server is up and try again.");
-				return null;
-			}
-
-			try {
-				mOutStream.write(messageBytes);
-			} catch (IOException e) {
-				e.printStackTrace();
-				publishProgress("ERROR: Message sending failed. Ensure that the server is up and try again.");
-				return null;
-			}
-
-			publishProgress("Message sent! Preparing for server response...");
-			try {
-				mInStream = mSocket.getInputStream();
-			} catch (IOException e) {
-				e.printStackTrace();
-				publishProgress("ERROR: Input stream creation failed. Ensure that the server is up and try again.");
-				return null;
-			}
-			BufferedReader serverReader = new BufferedReader(new InputStreamReader(mInStream));
-			String response = null;
-			char[] buffer = new char[5000];
-			try {
-				/**
-				 * WARNING! If the Android device is not connected to the server by this point,
-				 * calling read() will crash the app without throwing an exception!
-				 */
-				serverReader.read(buffer);
-				response = new String(buffer);
-			} catch (IOException e) {
-				e.printStackTrace();
-				publishProgress("ERROR: Failed to read server response. Ensure that the server is up and try again.");
-				return null;
-			}
-
-			return response;
-		}
+	private BluetoothConnectionManager getConnectionManager() {
+		return ((BluetoothClientApplication) getApplication()).getConnectionManager();
+	}
 
-		@Override
-		protected void onProgressUpdate(String... progress) {
-			getActivity().appendMessage(progress[0]);
-		}
+	private RequestQueue getRequestQueue() {
+		return ((BluetoothClientApplication) getApplication()).getRequestQueue();
+	}
 
-		@Override
-		protected void onCancelled() {
-			super.onCancelled();
-			end();
+	private void sendRequest() {
+		// The connection manager reuses the device's open socket if there is one, so only
+		// the first request (or the first after the link drops) pays for connecting.
+		appendMessage("Sending message (" + MESSAGE + ") to server...");
+		if (!getRequestQueue().submit(mDevice, MESSAGE)) {
+			appendMessage("ERROR: Too many requests are waiting to be sent. Try again later.");
+			unstickStartButton();
 		}
+	}
 
+	// Logs every request that finished since the last batch
+	private final RequestQueue.Listener mResultListener = new RequestQueue.Listener() {
 		@Override
-		protected void onPostExecute(String result) {
-			super.onPostExecute(result);
-			if (result != null) {
-				getActivity().appendMessage("Response from server: " + result);
-			}
-			end();
-		}
-
-		private void end() {
-			try {
-				if (mOutStream != null) {
-					mOutStream.flush();
-					mOutStream.close();
-				}
-
-				if (mInStream != null) {
-					mInStream.close();
-				}
-
-				if (mSocket != null) {
-					mSocket.close();
+		public void onCompleted(List<RequestQueue.Result> results) {
+			for (RequestQueue.Result result : results) {
+				if (result.getError() == null) {
+					appendMessage("Response from server: " + result.getResponse());
+				} else {
+					Log.w(TAG, "Request failed", result.getError());
+					appendMessage("ERROR: Request failed (" + result.getError().getMessage()
+							+ "). Ensure that the server is up and try again.");
 				}
-			} catch (IOException e) {
-				e.printStackTrace();
-				publishProgress("ERROR: Closing something failed.");
 			}
-			getActivity().unstickStartButton();
+			unstickStartButton();
 		}
+	};
+
+	void appendMessage(String newText) {
+		// The list scrolls itself to new messages if it was showing the end of the log
+		mLog.append(newText);
+	}
 
+	void unstickStartButton() {
+		appendMessage("");
+		mStartButton.unstick();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,68 @@
+package edu.kufpg.bluetooth.client;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.Build;
+
+/**
+ * The client's {@link android.app.Application Application}. Besides tracking tasks, it owns the
+ * {@link BluetoothConnectionManager} and {@link RequestQueue}, so that connections and queued
+ * requests outlive {@link BluetoothClientActivity} rotation and standby.
+ */
+public class BluetoothClientApplication extends NoGuavaBaseApplication<BluetoothClientActivity> {
+	private BluetoothConnectionManager mConnectionManager;
+	private RequestQueue mRequestQueue;
+	private DeviceCache mDeviceCache;
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		// Catch buffers that are never handed back while developing
+		BufferPool.setLeakDetection((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+	}
+
+	/**
+	 * @return The app-wide connection manager, or {@code null} if Bluetooth is not supported
+	 * on this device.
+	 */
+	@SuppressLint({ "NewApi", "InlinedApi" })
+	public synchronized BluetoothConnectionManager getConnectionManager() {
+		if (mConnectionManager == null) {
+			BluetoothAdapter adapter;
+			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+				adapter = BluetoothAdapter.getDefaultAdapter();
+			} else {
+				final BluetoothManager manager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+				adapter = manager.getAdapter();
+			}
+			if (adapter != null) {
+				mConnectionManager = new BluetoothConnectionManager(adapter);
+			}
+		}
+		return mConnectionManager;
+	}
+
+	/**
+	 * @return The app-wide request queue, or {@code null} if Bluetooth is not supported on this
+	 * device.
+	 */
+	public synchronized RequestQueue getRequestQueue() {
+		if (mRequestQueue == null && getConnectionManager() != null) {
+			mRequestQueue = new RequestQueue(mConnectionManager);
+		}
+		return mRequestQueue;
+	}
+
+	/**
+	 * @return The app-wide cache of discovered devices. Must only be used from the UI thread.
+	 */
+	public DeviceCache getDeviceCache() {
+		if (mDeviceCache == null) {
+			mDeviceCache = new DeviceCache(this);
+		}
+		return mDeviceCache;
+	}
+}
@@ -0,0 +1,748 @@
+package edu.kufpg.bluetooth.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps one long-lived RFCOMM connection per {@link BluetoothDevice} and sends any number of
+ * requests over it. Setting up an RFCOMM connection takes seconds, so paying for it once per
+ * device instead of once per message is what makes more than one request per second possible.
+ * <p>
+ * Each request {@link Frame} is tagged with an ID, and the server echoes the ID in its response,
+ * so several requests can be in flight on one connection at once. If the link drops, every in-flight
+ * request fails and the next request transparently reconnects.
+ * <p>
+ * {@link #send} is the asynchronous form of {@link #request}: the response is handed to a
+ * {@link ResponseCallback} instead of the calling thread. {@link RequestQueue} builds on it.
+ * <p>
+ * Files can be sent and fetched over the same connection with {@link #upload} and
+ * {@link #download}; see {@link FileTransfer}.
+ * <p>
+ * Every new connection offers the server compression (see {@link Compression}); text payloads
+ * of {@link #COMPRESSION_THRESHOLD} bytes or more are then sent and received compressed.
+ * <p>
+ * {@link #keepWarm} connects to a device in the background before it is needed, and then keeps
+ * the link up: an idle connection is checked with a {@link Frame#TYPE_PING} every
+ * {@link #HEARTBEAT_INTERVAL_MS}, and a dead one is reopened, backing off exponentially (with
+ * jitter, so that many clients do not retry in step) while the device stays unreachable. The
+ * server counts these pings as use, so its idle timeout does not close a connection kept warm.
+ * <p>
+ * Each connection grants the server credit for a window of responses, and sends requests only
+ * as fast as the server grants credit in return (see {@link FlowControl}). Requests beyond that
+ * wait in a bounded queue; {@link #setFlowControlPolicy} decides what happens when it is full.
+ * Servers that never grant credit are sent requests without limit.
+ */
+public class BluetoothConnectionManager {
+	private static final String TAG = "BluetoothConnectionManager";
+
+	/** How long {@link #request(BluetoothDevice, String)} waits for a response by default. */
+	public static final long DEFAULT_TIMEOUT_MS = 10000;
+
+	/** The smallest payload worth compressing; shorter ones cost more CPU than they save air time. */
+	public static final int COMPRESSION_THRESHOLD = 128;
+
+	/** How long a kept-warm connection may go without receiving anything before it is pinged. */
+	public static final long HEARTBEAT_INTERVAL_MS = 15000;
+	/** A kept-warm connection that receives nothing for this long, pings included, is reopened. */
+	public static final long HEARTBEAT_TIMEOUT_MS = 3 * HEARTBEAT_INTERVAL_MS;
+
+	/** The delay before the first reconnection attempt; it doubles with each failure. */
+	public static final long MIN_BACKOFF_MS = 1000;
+	public static final long MAX_BACKOFF_MS = 60000;
+
+	/** How often requests are checked for having timed out. */
+	static final long EXPIRY_CHECK_MS = 1000;
+
+	/**
+	 * Told how a request sent with {@link #send} ended. Called exactly once, from the
+	 * connection's reader thread or from a timer thread, so it must return quickly.
+	 */
+	public interface ResponseCallback {
+		void onResponse(String response);
+		void onFailure(IOException e);
+	}
+
+	private final BluetoothAdapter mAdapter;
+	private final Map<String, DeviceConnection> mConnections = new HashMap<String, DeviceConnection>();
+	private final Random mRandom = new Random();
+	/** Runs {@link KeepWarm} and request expiry; see {@link #scheduler()}. Guarded by mConnections. */
+	private ScheduledExecutorService mScheduler;
+	private KeepWarm mKeepWarm;
+	private boolean mCheckingExpiry;
+	private volatile FlowControlPolicy mFlowControlPolicy = FlowControlPolicy.DEFAULT;
+
+	public BluetoothConnectionManager(BluetoothAdapter adapter) {
+		mAdapter = adapter;
+	}
+
+	/**
+	 * Sets the response window and the size of the request queue, and what happens to a request
+	 * that finds the queue full. Affects connections opened afterwards.
+	 */
+	public void setFlowControlPolicy(FlowControlPolicy flowControlPolicy) {
+		mFlowControlPolicy = flowControlPolicy;
+	}
+
+	/**
+	 * Sends a message to a device and blocks until its response arrives. Must not be called
+	 * from the UI thread.
+	 * @param device The device to send to. A connection is opened if none exists.
+	 * @param message The request message.
+	 * @return The server's response.
+	 * @throws IOException if the connection cannot be made, the link drops, or no response
+	 * arrives within {@link #DEFAULT_TIMEOUT_MS}.
+	 */
+	public String request(BluetoothDevice device, String message) throws IOException {
+		return request(device, message, DEFAULT_TIMEOUT_MS);
+	}
+
+	/**
+	 * Sends a message to a device and blocks until its response arrives. If the existing
+	 * connection turns out to be dead when writing, it is reopened and the write retried once.
+	 * @param device The device to send to. A connection is opened if none exists.
+	 * @param message The request message.
+	 * @param timeoutMs How long to wait for the response.
+	 * @return The server's response.
+	 * @throws IOException if the connection cannot be made, the link drops, or no response
+	 * arrives in time.
+	 * @throws QueueOverflowException if the request cannot be queued for lack of the server's credit.
+	 */
+	public String request(BluetoothDevice device, String message, long timeoutMs) throws IOException {
+		// The deadline lets expire() clear the request from the in-flight map if await gives up
+		PendingRequest pending = write(device, message, null, SystemClock.elapsedRealtime() + timeoutMs);
+		checkExpiry();
+		return pending.await(timeoutMs);
+	}
+
+	/**
+	 * Sends a message to a device without waiting for the response. The call still blocks while
+	 * connecting and writing, so it must not be made from the UI thread.
+	 * @param device The device to send to. A connection is opened if none exists.
+	 * @param message The request message.
+	 * @param timeoutMs How long to wait for the response before failing the request.
+	 * @param callback Told about the response, or why there is none. Not called if this method
+	 * throws.
+	 * @throws IOException if the connection cannot be made or the message cannot be written.
+	 * @throws QueueOverflowException if the request cannot be queued for lack of the server's credit.
+	 */
+	public void send(BluetoothDevice device, String message, long timeoutMs, ResponseCallback callback) throws IOException {
+		write(device, message, callback, SystemClock.elapsedRealtime() + timeoutMs);
+		checkExpiry();
+	}
+
+	/**
+	 * Starts failing requests whose deadline has passed every {@link #EXPIRY_CHECK_MS}, unless
+	 * that is already being done.
+	 */
+	private void checkExpiry() {
+		synchronized (mConnections) {
+			if (!mCheckingExpiry) {
+				mCheckingExpiry = true;
+				scheduler().scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						expire();
+					}
+				}, EXPIRY_CHECK_MS, EXPIRY_CHECK_MS, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Writes a request, reopening the connection and retrying once if the existing connection
+	 * turns out to be dead. A connection that was only just opened is not retried.
+	 */
+	private PendingRequest write(BluetoothDevice device, String message, ResponseCallback callback, long deadline) throws IOException {
+		DeviceConnection existing;
+		synchronized (mConnections) {
+			existing = mConnections.get(device.getAddress());
+		}
+		DeviceConnection connection = getConnection(device);
+		try {
+			return connection.send(message, callback, deadline);
+		} catch (QueueOverflowException e) {
+			// The connection is fine, just busy
+			throw e;
+		} catch (IOException e) {
+			if (connection != existing) {
+				throw e;
+			}
+			Log.w(TAG, "Write to " + device.getAddress() + " failed on a stale connection, reconnecting", e);
+			synchronized (mConnections) {
+				if (mConnections.get(device.getAddress()) == connection) {
+					mConnections.remove(device.getAddress());
+				}
+			}
+			connection.close(e);
+			return getConnection(device).send(message, callback, deadline);
+		}
+	}
+
+	/**
+	 * Fails every request whose deadline has passed.
+	 */
+	private void expire() {
+		List<DeviceConnection> connections;
+		synchronized (mConnections) {
+			connections = new ArrayList<DeviceConnection>(mConnections.values());
+		}
+		long now = SystemClock.elapsedRealtime();
+		for (DeviceConnection connection : connections) {
+			for (Map.Entry<Integer, PendingRequest> entry : connection.mInFlight.entrySet()) {
+				PendingRequest pending = entry.getValue();
+				if (pending.mDeadline != 0 && pending.mDeadline <= now
+						&& connection.mInFlight.remove(entry.getKey(), pending)) {
+					pending.complete(null, new InterruptedIOException("No response from " + connection.mDevice.getAddress() + " in time"));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends a file to a device, continuing where an earlier, interrupted upload of the same file
+	 * stopped. The file is read from disk a chunk at a time. Must not be called from the UI thread.
+	 * @param device The device to send to. A connection is opened if none exists.
+	 * @param file The file to send.
+	 * @param remoteName The name to store it under on the server.
+	 * @param listener Told about progress; may be {@code null}.
+	 * @return The file's length.
+	 * @throws IOException if the file cannot be read, the link drops, or the server refuses it.
+	 */
+	public long upload(BluetoothDevice device, File file, String remoteName, TransferListener listener) throws IOException {
+		Stream stream = getConnection(device).openStream();
+		try {
+			return FileTransfer.upload(stream, file, remoteName, listener);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Fetches a file from a device. If {@code destination} already exists, it is taken to be the
+	 * start of an interrupted download, and only the rest of the file is fetched. Chunks are
+	 * written to disk as they arrive. Must not be called from the UI thread.
+	 * @param device The device to fetch from. A connection is opened if none exists.
+	 * @param remoteName The file's name on the server.
+	 * @param destination Where to store the file.
+	 * @param listener Told about progress; may be {@code null}.
+	 * @return The file's length.
+	 * @throws IOException if the file cannot be written, the link drops, or the server refuses.
+	 */
+	public long download(BluetoothDevice device, String remoteName, File destination, TransferListener listener) throws IOException {
+		Stream stream = getConnection(device).openStream();
+		try {
+			return FileTransfer.download(stream, remoteName, destination, listener);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Connects to a device in the background, so that the next request to it does not have to
+	 * wait for a connection, and keeps the connection alive until {@link #stopKeepingWarm()}.
+	 * Only one device is kept warm at a time; this replaces any previous one.
+	 */
+	public void keepWarm(BluetoothDevice device) {
+		synchronized (mConnections) {
+			if (mKeepWarm != null) {
+				if (mKeepWarm.mDevice.getAddress().equals(device.getAddress())) {
+					return;
+				}
+				mKeepWarm.cancel();
+			}
+			mKeepWarm = new KeepWarm(device);
+			mKeepWarm.schedule(0);
+		}
+	}
+
+	/**
+	 * Stops the heartbeats and reconnection attempts started by {@link #keepWarm}. The
+	 * connection itself stays open until it drops or is closed.
+	 */
+	public void stopKeepingWarm() {
+		synchronized (mConnections) {
+			if (mKeepWarm != null) {
+				mKeepWarm.cancel();
+				mKeepWarm = null;
+			}
+		}
+	}
+
+	/**
+	 * Closes the connection to a device, failing any requests still in flight on it.
+	 * @param device The device to disconnect from.
+	 */
+	public void disconnect(BluetoothDevice device) {
+		DeviceConnection connection;
+		synchronized (mConnections) {
+			connection = mConnections.remove(device.getAddress());
+		}
+		if (connection != null) {
+			connection.close(new IOException("Disconnected"));
+		}
+	}
+
+	/**
+	 * Closes every open connection.
+	 */
+	public void close() {
+		List<DeviceConnection> connections;
+		synchronized (mConnections) {
+			if (mKeepWarm != null) {
+				mKeepWarm.cancel();
+				mKeepWarm = null;
+			}
+			if (mScheduler != null) {
+				mScheduler.shutdownNow();
+				mScheduler = null;
+				mCheckingExpiry = false;
+			}
+			connections = new ArrayList<DeviceConnection>(mConnections.values());
+			mConnections.clear();
+		}
+		for (DeviceConnection connection : connections) {
+			connection.close(new IOException("Connection manager closed"));
+		}
+	}
+
+	/**
+	 * Returns the open connection to a device, connecting (or reconnecting, if the previous
+	 * connection has died) first if necessary.
+	 */
+	private DeviceConnection getConnection(BluetoothDevice device) throws IOException {
+		DeviceConnection connection;
+		synchronized (mConnections) {
+			connection = mConnections.get(device.getAddress());
+			if (connection == null || connection.isClosed()) {
+				connection = new DeviceConnection(device);
+				mConnections.put(device.getAddress(), connection);
+			}
+		}
+		connection.ensureConnected();
+		return connection;
+	}
+
+	/**
+	 * @return The timer for heartbeats, reconnection attempts, and request expiry, creating it if
+	 * necessary. Called with mConnections held.
+	 */
+	private ScheduledExecutorService scheduler() {
+		if (mScheduler == null) {
+			mScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "bt-timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return mScheduler;
+	}
+
+	/**
+	 * @return How long to wait before the next attempt after {@code failures} failed ones: half of
+	 * the exponentially growing ceiling, plus a random part of the other half.
+	 */
+	private long backoff(int failures) {
+		long ceiling = Math.min(MAX_BACKOFF_MS, MIN_BACKOFF_MS << Math.min(failures, 16));
+		return ceiling / 2 + (long) (mRandom.nextDouble() * (ceiling / 2));
+	}
+
+	/**
+	 * Connects to the kept-warm device, then checks on the connection every
+	 * {@link #HEARTBEAT_INTERVAL_MS}, reconnecting with backoff whenever it has died.
+	 */
+	private class KeepWarm implements Runnable {
+		private final BluetoothDevice mDevice;
+		private int mFailures;
+		private ScheduledFuture<?> mNext;
+		private boolean mCancelled;
+
+		KeepWarm(BluetoothDevice device) {
+			mDevice = device;
+		}
+
+		@Override
+		public void run() {
+			long delay;
+			try {
+				getConnection(mDevice).heartbeat();
+				mFailures = 0;
+				delay = HEARTBEAT_INTERVAL_MS;
+			} catch (IOException e) {
+				delay = backoff(mFailures++);
+				Log.w(TAG, "Connection to " + mDevice.getAddress() + " is down, retrying in " + delay + " ms", e);
+			}
+			synchronized (mConnections) {
+				if (!mCancelled) {
+					schedule(delay);
+				}
+			}
+		}
+
+		/** Called with mConnections held. */
+		void schedule(long delayMs) {
+			mNext = scheduler().schedule(this, delayMs, TimeUnit.MILLISECONDS);
+		}
+
+		/** Called with mConnections held. */
+		void cancel() {
+			mCancelled = true;
+			if (mNext != null) {
+				mNext.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * A single RFCOMM socket and the reader thread that matches its responses to requests. The
+	 * reader also answers the server's heartbeat {@link Frame#TYPE_PING}s, which the server uses
+	 * to tell a quiet client from one that is gone.
+	 */
+	private class DeviceConnection implements Runnable {
+		private final BluetoothDevice mDevice;
+		private final AtomicInteger mNextId = new AtomicInteger();
+		private final Map<Integer, PendingRequest> mInFlight = new ConcurrentHashMap<Integer, PendingRequest>();
+		private final Map<Integer, Stream> mStreams = new ConcurrentHashMap<Integer, Stream>();
+		private final Compression mCompression = new Compression();
+		private final FlowControl mFlow = new FlowControl(mFlowControlPolicy, new FlowControl.Sink() {
+			@Override
+			public void write(Frame frame) throws IOException {
+				DeviceConnection.this.write(frame);
+			}
+
+			@Override
+			public void dropped(Frame frame) {
+				PendingRequest pending = mInFlight.remove(frame.getRequestId());
+				if (pending != null) {
+					pending.complete(null, new QueueOverflowException("Dropped from the send queue to "
+							+ mDevice.getAddress() + " to make room for newer requests"));
+				}
+			}
+		});
+		private BluetoothSocket mSocket;
+		private volatile Thread mReader;
+		private OutputStream mOutStream;
+		private InputStream mInStream;
+		private volatile boolean mClosed;
+		/** When a frame last arrived, or the connection was made, by {@link SystemClock#elapsedRealtime()}. */
+		private volatile long mLastReceived;
+		/** When a frame the server counts as use was last sent, or the connection was made. */
+		private volatile long mLastSent;
+
+		DeviceConnection(BluetoothDevice device) {
+			mDevice = device;
+		}
+
+		boolean isClosed() {
+			return mClosed;
+		}
+
+		synchronized void ensureConnected() throws IOException {
+			if (mSocket != null) {
+				return;
+			}
+			// Discovery slows down connections considerably
+			mAdapter.cancelDiscovery();
+			BluetoothSocket socket = mDevice.createRfcommSocketToServiceRecord(BluetoothClientActivity.MY_UUID);
+			try {
+				socket.connect();
+				mOutStream = socket.getOutputStream();
+				mInStream = socket.getInputStream();
+			} catch (IOException e) {
+				mClosed = true;
+				try {
+					socket.close();
+				} catch (IOException closeException) {
+					Log.w(TAG, "Closing failed socket", closeException);
+				}
+				throw e;
+			}
+			mSocket = socket;
+			mLastReceived = SystemClock.elapsedRealtime();
+			mLastSent = mLastReceived;
+			// Deflate saves the most air time on text; LZ4 is the cheap fallback
+			write(Compression.hello(COMPRESSION_THRESHOLD, CompressionCodec.DEFLATE, CompressionCodec.LZ4));
+			write(mFlow.initialGrant());
+			mReader = new Thread(this, "bt-reader-" + mDevice.getAddress());
+			mReader.setDaemon(true);
+			mReader.start();
+		}
+
+		PendingRequest send(String message, ResponseCallback callback, long deadline) throws IOException {
+			int id = mNextId.incrementAndGet();
+			PendingRequest pending = new PendingRequest(callback, deadline);
+			mInFlight.put(id, pending);
+			try {
+				// Callbacks run on the reader thread, which must not wait for credit it would bring in
+				mFlow.send(new Frame(Frame.TYPE_REQUEST, id, message), Thread.currentThread() != mReader);
+			} catch (IOException e) {
+				mInFlight.remove(id);
+				throw e;
+			}
+			return pending;
+		}
+
+		/**
+		 * Pings the server if nothing has arrived, or nothing but answers to its own pings has been
+		 * sent, for {@link #HEARTBEAT_INTERVAL_MS}. Any frame counts as a sign of life, but the
+		 * server pings a quiet client too, and only this side's pings keep it from closing the
+		 * connection as idle.
+		 * @throws IOException if the connection has been silent for {@link #HEARTBEAT_TIMEOUT_MS}
+		 * (it is closed), or the ping cannot be written.
+		 */
+		void heartbeat() throws IOException {
+			long silent = SystemClock.elapsedRealtime() - mLastReceived;
+			if (silent >= HEARTBEAT_TIMEOUT_MS) {
+				IOException e = new IOException("Nothing received from " + mDevice.getAddress() + " for " + silent + " ms");
+				close(e);
+				throw e;
+			}
+			if (silent >= HEARTBEAT_INTERVAL_MS || SystemClock.elapsedRealtime() - mLastSent >= HEARTBEAT_INTERVAL_MS) {
+				write(new Frame(Frame.TYPE_PING, 0, mNextId.incrementAndGet(), null));
+			}
+		}
+
+		Stream openStream() {
+			Stream stream = new Stream(this, mNextId.incrementAndGet());
+			mStreams.put(stream.mId, stream);
+			return stream;
+		}
+
+		void write(Frame frame) throws IOException {
+			frame = mCompression.outbound(frame);
+			byte[] encoded = BufferPool.acquire(frame.getEncodedLength());
+			try {
+				int length = frame.encode(encoded, 0);
+				synchronized (this) {
+					if (mClosed) {
+						throw new IOException("Connection to " + mDevice.getAddress() + " is closed");
+					}
+					mOutStream.write(encoded, 0, length);
+					mOutStream.flush();
+				}
+				if (frame.getType() != Frame.TYPE_PONG && frame.getType() != Frame.TYPE_CREDIT) {
+					mLastSent = SystemClock.elapsedRealtime();
+				}
+			} catch (IOException e) {
+				close(e);
+				throw e;
+			} finally {
+				BufferPool.release(encoded);
+			}
+		}
+
+		@Override
+		public void run() {
+			FrameDecoder decoder = new FrameDecoder();
+			byte[] scratch = BufferPool.acquire(4096);
+			try {
+				Frame response;
+				while ((response = decoder.read(mInStream, scratch)) != null) {
+					mLastReceived = SystemClock.elapsedRealtime();
+					response = mCompression.inbound(response);
+					if (response.getType() == Frame.TYPE_HELLO) {
+						mCompression.accept(response);
+						continue;
+					}
+					if (response.getType() == Frame.TYPE_PONG) {
+						continue;
+					}
+					if (response.getType() == Frame.TYPE_PING) {
+						write(response.reply(Frame.TYPE_PONG, response.getPayload()));
+						continue;
+					}
+					if (response.getType() == Frame.TYPE_CREDIT) {
+						mFlow.onCredit(response);
+						continue;
+					}
+					if (FlowControl.isCredited(response)) {
+						mFlow.consumed();
+					}
+					Stream stream = mStreams.get(response.getRequestId());
+					if (stream != null) {
+						stream.deliver(response);
+						continue;
+					}
+					PendingRequest pending = mInFlight.remove(response.getRequestId());
+					if (pending == null) {
+						Log.w(TAG, "Unmatched " + response + " from " + mDevice.getAddress());
+					} else if (response.getType() == Frame.TYPE_RESPONSE) {
+						pending.complete(response.getText(), null);
+					} else {
+						pending.complete(null, new IOException("Server error: " + response.getText()));
+					}
+				}
+				close(new IOException("Server closed the connection"));
+			} catch (IOException e) {
+				close(e);
+			} finally {
+				BufferPool.release(scratch);
+				decoder.release();
+			}
+		}
+
+		void close(IOException cause) {
+			BluetoothSocket socket;
+			synchronized (this) {
+				mClosed = true;
+				socket = mSocket;
+			}
+			mFlow.close();
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					Log.w(TAG, "Closing socket", e);
+				}
+			}
+			for (Integer id : mInFlight.keySet()) {
+				PendingRequest pending = mInFlight.remove(id);
+				if (pending != null) {
+					pending.complete(null, cause);
+				}
+			}
+			for (Stream stream : mStreams.values()) {
+				stream.fail(cause);
+			}
+		}
+	}
+
+	/**
+	 * The client end of one file transfer: the frames the server sends for the stream's ID are
+	 * queued here by the connection's reader thread until the transferring thread takes them.
+	 */
+	static class Stream {
+		/** Queued by {@link #fail} to wake a waiting {@link #receive}. */
+		private static final Frame FAILED = new Frame(Frame.TYPE_ERROR, 0, 0, null);
+
+		private final DeviceConnection mConnection;
+		private final int mId;
+		private final BlockingQueue<Frame> mReceived = new LinkedBlockingQueue<Frame>();
+		private volatile IOException mFailure;
+
+		Stream(DeviceConnection connection, int id) {
+			mConnection = connection;
+			mId = id;
+		}
+
+		void send(int type, byte[] payload) throws IOException {
+			mConnection.write(new Frame(type, 0, mId, payload));
+		}
+
+		/**
+		 * @return The next frame the server sent on this stream, or {@code null} if none arrived
+		 * within {@code timeoutMs}.
+		 * @throws IOException if the connection failed.
+		 */
+		Frame receive(long timeoutMs) throws IOException {
+			Frame frame;
+			try {
+				frame = mReceived.poll(timeoutMs, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted during transfer");
+			}
+			if (frame == FAILED || (frame == null && mFailure != null)) {
+				throw mFailure;
+			}
+			return frame;
+		}
+
+		/**
+		 * @return The next frame if one is already queued, else {@code null}.
+		 */
+		Frame poll() throws IOException {
+			return receive(0);
+		}
+
+		void deliver(Frame frame) {
+			mReceived.add(frame);
+		}
+
+		void fail(IOException cause) {
+			mFailure = cause;
+			mReceived.add(FAILED);
+		}
+
+		void close() {
+			mConnection.mStreams.remove(mId);
+		}
+	}
+
+	/**
+	 * A request that is waiting for its response. Whoever removes it from its connection's
+	 * in-flight map completes it, so it is completed exactly once.
+	 */
+	private static class PendingRequest {
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		private final ResponseCallback mCallback;
+		/** When {@link BluetoothConnectionManager#expire()} fails the request, or 0 for never. */
+		final long mDeadline;
+		private volatile String mResponse;
+		private volatile IOException mError;
+
+		PendingRequest(ResponseCallback callback, long deadline) {
+			mCallback = callback;
+			mDeadline = deadline;
+		}
+
+		void complete(String response, IOException error) {
+			mResponse = response;
+			mError = error;
+			mDone.countDown();
+			if (mCallback == null) {
+				return;
+			}
+			try {
+				if (error == null) {
+					mCallback.onResponse(response);
+				} else {
+					mCallback.onFailure(error);
+				}
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Response callback failed", e);
+			}
+		}
+
+		String await(long timeoutMs) throws IOException {
+			try {
+				if (!mDone.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+					throw new InterruptedIOException("No response after " + timeoutMs + " ms");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for response");
+			}
+			if (mError != null) {
+				throw mError;
+			}
+			return mResponse;
+		}
+	}
+}
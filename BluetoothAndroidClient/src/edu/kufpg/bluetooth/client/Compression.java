@@ -0,0 +1,107 @@
+package edu.kufpg.bluetooth.client;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The compression settings of one connection: the client's end of the {@link Frame#TYPE_HELLO}
+ * exchange described in the server's {@code Compression}. The client sends {@link #hello} right
+ * after connecting and carries on without waiting; once the server's reply is
+ * {@link #accept accepted}, payloads of at least the agreed threshold are sent compressed
+ * whenever that makes them smaller. A server that does not understand HELLO never replies with
+ * one, so the connection simply stays uncompressed.
+ */
+final class Compression {
+	/** Payloads shorter than this are never compressed, whatever the server agrees to. */
+	static final int MIN_THRESHOLD = 32;
+
+	private volatile CompressionCodec mCodec;
+	private volatile int mThreshold = Integer.MAX_VALUE;
+
+	CompressionCodec getCodec() {
+		return mCodec;
+	}
+
+	/**
+	 * @param threshold The smallest payload worth compressing.
+	 * @param preferred The codecs to offer, most preferred first.
+	 * @return The HELLO frame to send.
+	 */
+	static Frame hello(int threshold, CompressionCodec... preferred) {
+		ByteBuffer payload = ByteBuffer.allocate(4 + preferred.length).putInt(threshold);
+		for (CompressionCodec codec : preferred) {
+			payload.put((byte) codec.getId());
+		}
+		return new Frame(Frame.TYPE_HELLO, 0, 0, payload.array());
+	}
+
+	/**
+	 * Adopts the codec and threshold the server chose.
+	 */
+	void accept(Frame reply) throws ProtocolException {
+		byte[] payload = reply.getPayload();
+		if (payload.length < 5) {
+			throw new ProtocolException("HELLO reply too short");
+		}
+		CompressionCodec codec = CompressionCodec.forId(payload[4]);
+		if (codec == null && payload[4] != CompressionCodec.ID_NONE) {
+			throw new ProtocolException("Server chose unknown codec " + payload[4]);
+		}
+		mThreshold = Math.max(MIN_THRESHOLD, Frame.getInt(payload, 0));
+		mCodec = codec;
+	}
+
+	/**
+	 * @return The frame with its payload decompressed, or the frame itself if it was not
+	 * compressed.
+	 * @throws ProtocolException if the payload is compressed but no codec was negotiated, or
+	 * it does not decompress.
+	 */
+	Frame inbound(Frame frame) throws ProtocolException {
+		if (!frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+			return frame;
+		}
+		CompressionCodec codec = mCodec;
+		byte[] payload = frame.getPayload();
+		if (codec == null) {
+			throw new ProtocolException("Compressed frame before a codec was negotiated");
+		}
+		if (payload.length < 4) {
+			throw new ProtocolException("Compressed payload too short");
+		}
+		int originalLength = Frame.getInt(payload, 0);
+		if (originalLength < 0 || originalLength > Frame.MAX_PAYLOAD_LENGTH) {
+			throw new ProtocolException("Bad decompressed length " + originalLength);
+		}
+		byte[] original = new byte[originalLength];
+		codec.decompress(payload, 4, payload.length - 4, original, 0, originalLength);
+		return new Frame(frame.getType(), frame.getFlags() & ~Frame.FLAG_COMPRESSED, frame.getRequestId(), original);
+	}
+
+	/**
+	 * @return The frame with its payload compressed, or the frame itself if compression is off,
+	 * the payload is below the threshold, or compressing would not make it smaller.
+	 */
+	Frame outbound(Frame frame) {
+		CompressionCodec codec = mCodec;
+		byte[] payload = frame.getPayload();
+		if (codec == null || payload.length < mThreshold || frame.getType() == Frame.TYPE_HELLO
+				|| frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+			return frame;
+		}
+		// Only worth it if the result, length prefix included, is smaller than the original
+		byte[] compressed = BufferPool.acquire(payload.length);
+		byte[] exact;
+		try {
+			int n = codec.compress(payload, 0, payload.length, compressed, 4, payload.length - 5);
+			if (n < 0) {
+				return frame;
+			}
+			Frame.putInt(compressed, 0, payload.length);
+			exact = new byte[4 + n];
+			System.arraycopy(compressed, 0, exact, 0, exact.length);
+		} finally {
+			BufferPool.release(compressed);
+		}
+		return new Frame(frame.getType(), frame.getFlags() | Frame.FLAG_COMPRESSED, frame.getRequestId(), exact);
+	}
+}
@@ -0,0 +1,264 @@
+package edu.kufpg.bluetooth.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+/**
+ * Remembers every device discovery has found, keyed by address, across app restarts: when it
+ * was last seen, how strong its signal was, and whether it advertises our service (as learned
+ * by a {@link ServiceProbe}, or from the UUIDs Android already has for the device). Devices from
+ * earlier scans can then be listed immediately, before (or instead of) a twelve-second
+ * discovery.
+ * <p>
+ * Updates are made in memory and written to {@link SharedPreferences} by {@link #save()}, only
+ * for the entries that changed. Only the {@link #MAX_DEVICES} most recently seen devices are kept.
+ * Must only be used from the UI thread.
+ */
+public class DeviceCache {
+	private static final String TAG = "DeviceCache";
+	private static final String PREFS_NAME = "device_cache";
+
+	public static final int MAX_DEVICES = 100;
+
+	/** The device has not told us which services it offers. */
+	public static final int SERVICE_UNKNOWN = 0;
+	/** The device advertises {@link BluetoothClientActivity#MY_UUID}. */
+	public static final int SERVICE_PRESENT = 1;
+	/** The device listed its services, and ours is not among them. */
+	public static final int SERVICE_ABSENT = 2;
+
+	public static final short RSSI_UNKNOWN = Short.MIN_VALUE;
+
+	private static final UUID REVERSED_SERVICE_UUID = reverse(BluetoothClientActivity.MY_UUID);
+
+	private final SharedPreferences mPrefs;
+	private final Map<String, CachedDevice> mDevices = new HashMap<String, CachedDevice>();
+	private final Set<String> mDirty = new HashSet<String>();
+
+	public DeviceCache(Context context) {
+		mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+			CachedDevice device = CachedDevice.decode(entry.getKey(), String.valueOf(entry.getValue()));
+			if (device != null) {
+				mDevices.put(device.mAddress, device);
+			} else {
+				Log.w(TAG, "Dropping unreadable entry for " + entry.getKey());
+				mDirty.add(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * @return The entry for the address, or {@code null} if the device is unknown.
+	 */
+	public CachedDevice get(String address) {
+		return mDevices.get(address);
+	}
+
+	public Collection<CachedDevice> getAll() {
+		return Collections.unmodifiableCollection(mDevices.values());
+	}
+
+	/**
+	 * Returns the device's entry, creating it if necessary, without marking the device as seen.
+	 * Used for devices that are listed without being discovered, such as paired ones.
+	 */
+	public CachedDevice remember(BluetoothDevice device) {
+		CachedDevice cached = mDevices.get(device.getAddress());
+		if (cached == null) {
+			cached = new CachedDevice(device.getAddress());
+			mDevices.put(cached.mAddress, cached);
+		}
+		update(cached, device);
+		return cached;
+	}
+
+	/**
+	 * Records that discovery has just found the device.
+	 * @param rssi The signal strength reported with it, or {@link #RSSI_UNKNOWN}.
+	 * @return The device's updated entry.
+	 */
+	public CachedDevice seen(BluetoothDevice device, short rssi) {
+		CachedDevice cached = remember(device);
+		cached.mLastSeen = System.currentTimeMillis();
+		if (rssi != RSSI_UNKNOWN) {
+			cached.mRssi = rssi;
+		}
+		mDirty.add(cached.mAddress);
+		return cached;
+	}
+
+	/**
+	 * Records whether a device offers our service.
+	 * @param service {@link #SERVICE_PRESENT} or {@link #SERVICE_ABSENT}.
+	 */
+	public void setService(CachedDevice cached, int service) {
+		if (cached.mService != service) {
+			cached.mService = service;
+			mDirty.add(cached.mAddress);
+		}
+	}
+
+	/**
+	 * Writes the entries that changed since the last save, evicting the least recently seen
+	 * devices beyond {@link #MAX_DEVICES}.
+	 */
+	public void save() {
+		if (mDevices.size() > MAX_DEVICES) {
+			List<CachedDevice> byAge = new ArrayList<CachedDevice>(mDevices.values());
+			Collections.sort(byAge, new Comparator<CachedDevice>() {
+				@Override
+				public int compare(CachedDevice a, CachedDevice b) {
+					return a.mLastSeen < b.mLastSeen ? 1 : a.mLastSeen > b.mLastSeen ? -1 : 0;
+				}
+			});
+			for (CachedDevice stale : byAge.subList(MAX_DEVICES, byAge.size())) {
+				mDevices.remove(stale.mAddress);
+				mDirty.add(stale.mAddress);
+			}
+		}
+		if (mDirty.isEmpty()) {
+			return;
+		}
+		SharedPreferences.Editor editor = mPrefs.edit();
+		for (String address : mDirty) {
+			CachedDevice cached = mDevices.get(address);
+			if (cached == null) {
+				editor.remove(address);
+			} else {
+				editor.putString(address, cached.encode());
+			}
+		}
+		editor.commit();
+		mDirty.clear();
+	}
+
+	/**
+	 * Copies what the {@link BluetoothDevice} itself knows: its name and, on Android 4.0.3 and
+	 * later, the service UUIDs it advertised the last time they were fetched.
+	 */
+	@SuppressLint("NewApi")
+	private void update(CachedDevice cached, BluetoothDevice device) {
+		String name = device.getName();
+		if (name != null && !name.equals(cached.mName)) {
+			cached.mName = name;
+			mDirty.add(cached.mAddress);
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1) {
+			ParcelUuid[] uuids = device.getUuids();
+			if (uuids != null) {
+				setService(cached, hasService(uuids) ? SERVICE_PRESENT : SERVICE_ABSENT);
+			}
+		}
+	}
+
+	/**
+	 * @return {@code true} if {@code uuids} includes {@link BluetoothClientActivity#MY_UUID}.
+	 */
+	static boolean hasService(ParcelUuid[] uuids) {
+		for (ParcelUuid uuid : uuids) {
+			if (isServiceUuid(uuid.getUuid())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Some Android 4.x Bluetooth stacks report SDP UUIDs with their bytes reversed, so both
+	 * orders are accepted.
+	 * @return {@code true} if {@code uuid} is {@link BluetoothClientActivity#MY_UUID}.
+	 */
+	static boolean isServiceUuid(UUID uuid) {
+		return BluetoothClientActivity.MY_UUID.equals(uuid) || REVERSED_SERVICE_UUID.equals(uuid);
+	}
+
+	private static UUID reverse(UUID uuid) {
+		return new UUID(Long.reverseBytes(uuid.getLeastSignificantBits()), Long.reverseBytes(uuid.getMostSignificantBits()));
+	}
+
+	/**
+	 * Everything the cache knows about one device.
+	 */
+	public static class CachedDevice {
+		private final String mAddress;
+		private String mName;
+		private long mLastSeen;
+		private short mRssi = RSSI_UNKNOWN;
+		private int mService = SERVICE_UNKNOWN;
+
+		CachedDevice(String address) {
+			mAddress = address;
+		}
+
+		public String getAddress() {
+			return mAddress;
+		}
+
+		/**
+		 * @return The device's friendly name, or {@code null} if it has never been reported.
+		 */
+		public String getName() {
+			return mName;
+		}
+
+		/**
+		 * @return When discovery last found the device, or 0 if it never has.
+		 */
+		public long getLastSeen() {
+			return mLastSeen;
+		}
+
+		/**
+		 * @return The signal strength from the last discovery, or {@link #RSSI_UNKNOWN}.
+		 */
+		public short getRssi() {
+			return mRssi;
+		}
+
+		/**
+		 * @return {@link #SERVICE_UNKNOWN}, {@link #SERVICE_PRESENT}, or {@link #SERVICE_ABSENT}.
+		 */
+		public int getService() {
+			return mService;
+		}
+
+		/** The name goes last, since it may contain the separator. */
+		String encode() {
+			return mLastSeen + "|" + mRssi + "|" + mService + "|" + (mName == null ? "" : mName);
+		}
+
+		static CachedDevice decode(String address, String encoded) {
+			String[] fields = encoded.split("\\|", 4);
+			if (fields.length != 4) {
+				return null;
+			}
+			CachedDevice cached = new CachedDevice(address);
+			try {
+				cached.mLastSeen = Long.parseLong(fields[0]);
+				cached.mRssi = Short.parseShort(fields[1]);
+				cached.mService = Integer.parseInt(fields[2]);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			cached.mName = fields[3].length() == 0 ? null : fields[3];
+			return cached;
+		}
+	}
+}
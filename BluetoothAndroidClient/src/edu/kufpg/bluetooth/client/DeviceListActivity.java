@@ -34,17 +34,22 @@ import android.view.View;
 import android.view.Window;
 import android.view.View.OnClickListener;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ListView;
-import android.widget.TextView;
 import android.widget.AdapterView.OnItemClickListener;
 
+import edu.kufpg.bluetooth.client.DeviceCache.CachedDevice;
+
 /**
  * This Activity appears as a dialog. It lists any paired devices and
  * devices detected in the area after discovery. When a device is chosen
  * by the user, the MAC address of the device is sent back to the parent
  * Activity in the result Intent.
+ * <p>
+ * Devices found by earlier scans are listed from the {@link DeviceCache}
+ * right away; a new scan merges what it finds into the same rows. Devices
+ * whose services are unknown are asked for them by a {@link ServiceProbe}
+ * while no scan is running; those without our server are then hidden.
  */
 public class DeviceListActivity extends Activity {
 	// Debugging
@@ -56,8 +61,10 @@ public class DeviceListActivity extends Activity {
 
 	// Member fields
 	private BluetoothAdapter mBtAdapter;
-	private ArrayAdapter<String> mPairedDevicesArrayAdapter;
-	private ArrayAdapter<String> mNewDevicesArrayAdapter;
+	private DeviceCache mDeviceCache;
+	private DeviceListAdapter mPairedDevicesAdapter;
+	private DeviceListAdapter mNewDevicesAdapter;
+	private ServiceProbe mServiceProbe;
 
 	@SuppressLint({ "NewApi", "InlinedApi" })
 	@Override
@@ -80,19 +87,21 @@ public class DeviceListActivity extends Activity {
 			}
 		});
 
-		// Initialize array adapters. One for already paired devices and
+		// Initialize list adapters. One for already paired devices and
 		// one for newly discovered devices
-		mPairedDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
-		mNewDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
+		mDeviceCache = ((BluetoothClientApplication) getApplication()).getDeviceCache();
+		mPairedDevicesAdapter = new DeviceListAdapter(this);
+		mNewDevicesAdapter = new DeviceListAdapter(this);
+		mServiceProbe = new ServiceProbe(this, mServiceListener);
 
 		// Find and set up the ListView for paired devices
 		ListView pairedListView = (ListView) findViewById(R.id.paired_devices);
-		pairedListView.setAdapter(mPairedDevicesArrayAdapter);
+		pairedListView.setAdapter(mPairedDevicesAdapter);
 		pairedListView.setOnItemClickListener(mDeviceClickListener);
 
 		// Find and set up the ListView for newly discovered devices
 		ListView newDevicesListView = (ListView) findViewById(R.id.new_devices);
-		newDevicesListView.setAdapter(mNewDevicesArrayAdapter);
+		newDevicesListView.setAdapter(mNewDevicesAdapter);
 		newDevicesListView.setOnItemClickListener(mDeviceClickListener);
 
 		// Register for broadcasts when a device is discovered
@@ -114,18 +123,66 @@ public class DeviceListActivity extends Activity {
 		// Get a set of currently paired devices
 		Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
 
-		// If there are paired devices, add each one to the ArrayAdapter
+		// If there are paired devices, add each one to the adapter
 		if (pairedDevices.size() > 0) {
 			findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
 			for (BluetoothDevice device : pairedDevices) {
-				mPairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+				mPairedDevicesAdapter.merge(mDeviceCache.remember(device));
 			}
+			mPairedDevicesAdapter.setEmptyText(getResources().getText(R.string.none_paired_running));
 		} else {
-			String noDevices = getResources().getText(R.string.none_paired).toString();
-			mPairedDevicesArrayAdapter.add(noDevices);
+			mPairedDevicesAdapter.setEmptyText(getResources().getText(R.string.none_paired));
+		}
+
+		// List the unpaired devices earlier scans found, so they can be picked without a scan
+		for (CachedDevice cached : mDeviceCache.getAll()) {
+			if (cached.getLastSeen() > 0 && !isPaired(pairedDevices, cached.getAddress())) {
+				mNewDevicesAdapter.merge(cached);
+			}
+		}
+		if (!mNewDevicesAdapter.isEmptyList()) {
+			findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
+		}
+
+		if (!mBtAdapter.isDiscovering()) {
+			probeUnknownDevices();
+		}
+	}
+
+	/**
+	 * Queues an SDP query for every listed device whose services are unknown.
+	 */
+	private void probeUnknownDevices() {
+		if (!ServiceProbe.isSupported()) {
+			return;
+		}
+		for (BluetoothDevice device : mBtAdapter.getBondedDevices()) {
+			if (mDeviceCache.remember(device).getService() == DeviceCache.SERVICE_UNKNOWN) {
+				mServiceProbe.probe(device);
+			}
+		}
+		for (CachedDevice cached : mDeviceCache.getAll()) {
+			if (cached.getLastSeen() > 0 && cached.getService() == DeviceCache.SERVICE_UNKNOWN) {
+				mServiceProbe.probe(mBtAdapter.getRemoteDevice(cached.getAddress()));
+			}
 		}
 	}
 
+	private static boolean isPaired(Set<BluetoothDevice> pairedDevices, String address) {
+		for (BluetoothDevice device : pairedDevices) {
+			if (device.getAddress().equals(address)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		mDeviceCache.save();
+	}
+
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
@@ -137,6 +194,7 @@ public class DeviceListActivity extends Activity {
 
 		// Unregister broadcast listeners
 		unregisterReceiver(mReceiver);
+		mServiceProbe.stop();
 	}
 
 	/**
@@ -152,6 +210,9 @@ public class DeviceListActivity extends Activity {
 		// Turn on sub-title for new devices
 		findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
 
+		// SDP queries slow discovery down; the ones left are queued again when it finishes
+		mServiceProbe.stop();
+
 		// If we're already discovering, stop it
 		if (mBtAdapter.isDiscovering()) {
 			mBtAdapter.cancelDiscovery();
@@ -167,9 +228,12 @@ public class DeviceListActivity extends Activity {
 			// Cancel discovery because it's costly and we're about to connect
 			mBtAdapter.cancelDiscovery();
 
-			// Get the device MAC address, which is the last 17 chars in the View
-			String info = ((TextView) view).getText().toString();
-			String address = info.substring(info.length() - 17);
+			// The placeholder row has no device
+			CachedDevice device = (CachedDevice) parent.getItemAtPosition(position);
+			if (device == null) {
+				return;
+			}
+			String address = device.getAddress();
 
 			// Create the result Intent and include the MAC address
 			Intent intent = new Intent();
@@ -181,6 +245,20 @@ public class DeviceListActivity extends Activity {
 		}
 	};
 
+	// Moves each probed device into place, or out of the lists if it lacks our server
+	private final ServiceProbe.Listener mServiceListener = new ServiceProbe.Listener() {
+		@Override
+		public void onServiceFound(BluetoothDevice device, boolean hasService) {
+			CachedDevice cached = mDeviceCache.remember(device);
+			mDeviceCache.setService(cached, hasService ? DeviceCache.SERVICE_PRESENT : DeviceCache.SERVICE_ABSENT);
+			if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
+				mNewDevicesAdapter.merge(cached);
+			} else {
+				mPairedDevicesAdapter.merge(cached);
+			}
+		}
+	};
+
 	// The BroadcastReceiver that listens for discovered devices and
 	// changes the title when discovery is finished
 	private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
@@ -192,18 +270,20 @@ public class DeviceListActivity extends Activity {
 			if (BluetoothDevice.ACTION_FOUND.equals(action)) {
 				// Get the BluetoothDevice object from the Intent
 				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-				// If it's already paired, skip it, because it's been listed already
+				short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, DeviceCache.RSSI_UNKNOWN);
+				CachedDevice cached = mDeviceCache.seen(device, rssi);
+				// Paired devices are listed already; refresh their row instead
 				if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-					mNewDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+					mNewDevicesAdapter.merge(cached);
+				} else {
+					mPairedDevicesAdapter.merge(cached);
 				}
 				// When discovery is finished, change the Activity title
 			} else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
 				setProgressBarIndeterminateVisibility(false);
 				setTitle(R.string.select_device);
-				if (mNewDevicesArrayAdapter.getCount() == 0) {
-					String noDevices = getResources().getText(R.string.none_found).toString();
-					mNewDevicesArrayAdapter.add(noDevices);
-				}
+				mNewDevicesAdapter.setEmptyText(getResources().getText(R.string.none_found));
+				probeUnknownDevices();
 			}
 		}
 	};
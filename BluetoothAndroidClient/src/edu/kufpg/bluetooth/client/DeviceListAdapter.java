@@ -0,0 +1,135 @@
+package edu.kufpg.bluetooth.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import edu.kufpg.bluetooth.client.DeviceCache.CachedDevice;
+
+/**
+ * Lists {@link CachedDevice CachedDevices}, one row per address. Merging a device that is
+ * already listed updates its row instead of adding another, so discovery results can be fed in
+ * as they arrive. Devices known to run our server come first, then devices not yet probed, each
+ * ordered by when they were last seen, then by signal strength. Devices known not to run the
+ * server are left out, since connecting to them could only fail. While the list is empty, it
+ * shows a single disabled row with a placeholder message instead.
+ */
+class DeviceListAdapter extends BaseAdapter {
+	private static final Comparator<CachedDevice> ORDER = new Comparator<CachedDevice>() {
+		@Override
+		public int compare(CachedDevice a, CachedDevice b) {
+			boolean aServer = a.getService() == DeviceCache.SERVICE_PRESENT;
+			if (aServer != (b.getService() == DeviceCache.SERVICE_PRESENT)) {
+				return aServer ? -1 : 1;
+			}
+			if (a.getLastSeen() != b.getLastSeen()) {
+				return a.getLastSeen() < b.getLastSeen() ? 1 : -1;
+			}
+			return b.getRssi() - a.getRssi();
+		}
+	};
+
+	private final Context mContext;
+	private final LayoutInflater mInflater;
+	private final List<CachedDevice> mDevices = new ArrayList<CachedDevice>();
+	private final Set<String> mAddresses = new HashSet<String>();
+	private CharSequence mEmptyText;
+
+	DeviceListAdapter(Context context) {
+		mContext = context;
+		mInflater = LayoutInflater.from(context);
+	}
+
+	/**
+	 * Adds the device, or refreshes its row if it is already listed. A device now known not to
+	 * run the server is removed instead.
+	 */
+	void merge(CachedDevice device) {
+		if (device.getService() == DeviceCache.SERVICE_ABSENT) {
+			if (mAddresses.remove(device.getAddress())) {
+				mDevices.remove(device);
+				notifyDataSetChanged();
+			}
+			return;
+		}
+		if (mAddresses.add(device.getAddress())) {
+			mDevices.add(device);
+		}
+		Collections.sort(mDevices, ORDER);
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * @param text What to show while no devices are listed, or {@code null} for nothing.
+	 */
+	void setEmptyText(CharSequence text) {
+		mEmptyText = text;
+		notifyDataSetChanged();
+	}
+
+	boolean isEmptyList() {
+		return mDevices.isEmpty();
+	}
+
+	@Override
+	public int getCount() {
+		return mDevices.isEmpty() && mEmptyText != null ? 1 : mDevices.size();
+	}
+
+	/**
+	 * @return The device in the row, or {@code null} for the placeholder row.
+	 */
+	@Override
+	public CachedDevice getItem(int position) {
+		return mDevices.isEmpty() ? null : mDevices.get(position);
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return position;
+	}
+
+	@Override
+	public boolean areAllItemsEnabled() {
+		return !mDevices.isEmpty();
+	}
+
+	@Override
+	public boolean isEnabled(int position) {
+		return !mDevices.isEmpty();
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		TextView view = (TextView) (convertView != null ? convertView
+				: mInflater.inflate(R.layout.device_name, parent, false));
+		CachedDevice device = getItem(position);
+		if (device == null) {
+			view.setText(mEmptyText);
+			return view;
+		}
+		StringBuilder text = new StringBuilder();
+		text.append(device.getName() != null ? device.getName() : device.getAddress());
+		text.append('\n').append(device.getAddress());
+		if (device.getRssi() != DeviceCache.RSSI_UNKNOWN) {
+			text.append("  ").append(mContext.getString(R.string.device_rssi, device.getRssi()));
+		}
+		if (device.getLastSeen() > 0) {
+			text.append("  ").append(DateUtils.getRelativeTimeSpanString(device.getLastSeen(),
+					System.currentTimeMillis(), DateUtils.MINUTE_IN_MILLIS));
+		}
+		view.setText(text);
+		return view;
+	}
+}
@@ -0,0 +1,159 @@
+package edu.kufpg.bluetooth.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+/**
+ * The client side of the file transfer protocol described in {@link StreamCodec}. Files are
+ * streamed between disk and the connection one chunk at a time, so a transfer needs no more
+ * memory than its flow control window, however large the file is.
+ */
+final class FileTransfer {
+	/** The most file data sent in one DATA frame. */
+	static final int CHUNK_SIZE = 16 * 1024;
+
+	/** How many unacknowledged bytes the server may send during a download. */
+	static final int DOWNLOAD_WINDOW = 256 * 1024;
+
+	/** How long to wait for the server before giving up on a transfer. */
+	static final long TIMEOUT_MS = 30000;
+
+	private FileTransfer() {}
+
+	static long upload(BluetoothConnectionManager.Stream stream, File file, String remoteName,
+			TransferListener listener) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			long length = in.length();
+			stream.send(Frame.TYPE_STREAM_OPEN, StreamCodec.open(StreamCodec.MODE_PUT, StreamCodec.RESUME, 0, remoteName));
+
+			// The server's first ACK says how much of the file it already has
+			Frame ack = expect(stream, Frame.TYPE_STREAM_ACK);
+			long sent = StreamCodec.ackOffset(ack.getPayload());
+			long limit = sent + StreamCodec.ackWindow(ack.getPayload());
+			if (sent > length) {
+				throw new IOException("Server already has " + sent + " bytes of a " + length + " byte file");
+			}
+			in.seek(sent);
+			notify(listener, sent, length);
+
+			byte[] chunk = BufferPool.acquire(CHUNK_SIZE);
+			try {
+				sendChunks(stream, in, file, chunk, sent, limit, length, listener);
+			} finally {
+				BufferPool.release(chunk);
+			}
+			stream.send(Frame.TYPE_STREAM_END, StreamCodec.end(length));
+
+			// ACKs may still be on their way ahead of the final response
+			Frame response;
+			do {
+				response = next(stream);
+			} while (response.getType() == Frame.TYPE_STREAM_ACK);
+			check(response, Frame.TYPE_RESPONSE);
+			return length;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Sends the file from {@code sent} to the end, never more than the window beyond what the
+	 * server has acknowledged.
+	 */
+	private static void sendChunks(BluetoothConnectionManager.Stream stream, RandomAccessFile in, File file,
+			byte[] chunk, long sent, long limit, long length, TransferListener listener) throws IOException {
+		while (sent < length) {
+			if (sent >= limit) {
+				limit = windowLimit(expect(stream, Frame.TYPE_STREAM_ACK), limit);
+				continue;
+			}
+			int n = in.read(chunk, 0, (int) Math.min(chunk.length, Math.min(length, limit) - sent));
+			if (n < 0) {
+				throw new IOException(file + " shrank during upload");
+			}
+			stream.send(Frame.TYPE_STREAM_DATA, StreamCodec.data(sent, chunk, 0, n));
+			sent += n;
+			notify(listener, sent, length);
+
+			// Pick up window updates without waiting for them
+			Frame update;
+			while ((update = stream.poll()) != null) {
+				limit = windowLimit(check(update, Frame.TYPE_STREAM_ACK), limit);
+			}
+		}
+	}
+
+	static long download(BluetoothConnectionManager.Stream stream, String remoteName, File destination,
+			TransferListener listener) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(destination, "rw");
+		try {
+			long received = out.length();
+			long acknowledged = received;
+			out.seek(received);
+			stream.send(Frame.TYPE_STREAM_OPEN, StreamCodec.open(StreamCodec.MODE_GET, received, DOWNLOAD_WINDOW, remoteName));
+			notify(listener, received, -1);
+
+			while (true) {
+				Frame frame = next(stream);
+				if (frame.getType() == Frame.TYPE_STREAM_END) {
+					long length = StreamCodec.endLength(frame.getPayload());
+					if (length != received) {
+						throw new IOException("Stream ended at " + length + " but " + received + " bytes were received");
+					}
+					return length;
+				}
+				byte[] payload = check(frame, Frame.TYPE_STREAM_DATA).getPayload();
+				long offset = StreamCodec.dataOffset(payload);
+				if (offset != received) {
+					throw new IOException("Expected offset " + received + ", got " + offset);
+				}
+				int n = payload.length - StreamCodec.DATA_HEADER_LENGTH;
+				out.write(payload, StreamCodec.DATA_HEADER_LENGTH, n);
+				received += n;
+				notify(listener, received, -1);
+				if (received - acknowledged >= DOWNLOAD_WINDOW / 2) {
+					stream.send(Frame.TYPE_STREAM_ACK, StreamCodec.ack(received, DOWNLOAD_WINDOW));
+					acknowledged = received;
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static long windowLimit(Frame ack, long limit) {
+		byte[] payload = ack.getPayload();
+		return Math.max(limit, StreamCodec.ackOffset(payload) + StreamCodec.ackWindow(payload));
+	}
+
+	private static Frame expect(BluetoothConnectionManager.Stream stream, int type) throws IOException {
+		return check(next(stream), type);
+	}
+
+	private static Frame next(BluetoothConnectionManager.Stream stream) throws IOException {
+		Frame frame = stream.receive(TIMEOUT_MS);
+		if (frame == null) {
+			throw new InterruptedIOException("Server did not answer within " + TIMEOUT_MS + " ms");
+		}
+		return frame;
+	}
+
+	private static Frame check(Frame frame, int type) throws IOException {
+		if (frame.getType() == Frame.TYPE_ERROR) {
+			throw new IOException("Server error: " + frame.getText());
+		}
+		if (frame.getType() != type) {
+			throw new IOException("Unexpected " + frame);
+		}
+		return frame;
+	}
+
+	private static void notify(TransferListener listener, long transferred, long total) {
+		if (listener != null) {
+			listener.onProgress(transferred, total);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package edu.kufpg.bluetooth.client;
+
+import java.util.Locale;
+
+/**
+ * Sizes a connection's credit-based flow control (see {@link FlowControl}): how many responses
+ * the server may have outstanding, how many requests may wait for the server's credit, and what
+ * happens to a request that finds that queue full.
+ */
+public final class FlowControlPolicy {
+	/**
+	 * What to do with a frame that finds the send queue full.
+	 */
+	public enum Overflow {
+		/**
+		 * The sending thread waits for room, for up to {@link FlowControl#BLOCK_TIMEOUT_MS}. A
+		 * connection's reader thread (where response callbacks run) cannot wait, since the credit
+		 * would arrive through it, so there this behaves like {@link #FAIL_FAST}.
+		 */
+		BLOCK,
+		/** The oldest queued request is failed to make room. */
+		DROP_OLDEST,
+		/** The request is refused with a {@link QueueOverflowException}. */
+		FAIL_FAST
+	}
+
+	/** A window of 64 responses, a queue of 256 requests, and senders that wait for room. */
+	public static final FlowControlPolicy DEFAULT = new FlowControlPolicy(64, 256, Overflow.BLOCK);
+
+	private final int mWindow;
+	private final int mQueueCapacity;
+	private final Overflow mOverflow;
+
+	/**
+	 * @param window How many responses the server may send beyond those already received.
+	 * @param queueCapacity How many requests may wait for the server to grant credit.
+	 * @param overflow What to do when the queue is full.
+	 */
+	public FlowControlPolicy(int window, int queueCapacity, Overflow overflow) {
+		if (window < 2 || queueCapacity < 1 || overflow == null) {
+			throw new IllegalArgumentException("Bad flow control policy: window " + window
+					+ ", queue " + queueCapacity + ", " + overflow);
+		}
+		mWindow = window;
+		mQueueCapacity = queueCapacity;
+		mOverflow = overflow;
+	}
+
+	public int getWindow() {
+		return mWindow;
+	}
+
+	public int getQueueCapacity() {
+		return mQueueCapacity;
+	}
+
+	public Overflow getOverflow() {
+		return mOverflow;
+	}
+
+	@Override
+	public String toString() {
+		return "window " + mWindow + " / queue " + mQueueCapacity + " / " + mOverflow.name().toLowerCase(Locale.US).replace('_', '-');
+	}
+}
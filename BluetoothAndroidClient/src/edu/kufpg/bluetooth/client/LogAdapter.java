@@ -0,0 +1,119 @@
+package edu.kufpg.bluetooth.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * The activity's log, one row per message, kept in a ring buffer of the last {@link #CAPACITY}
+ * messages so that a long test run neither grows without bound nor slows down the UI. Only the
+ * rows on screen are laid out, since the {@link ListView} recycles them.
+ * <p>
+ * Any number of messages appended within one frame cause a single {@link #notifyDataSetChanged()}
+ * on the next frame. Must only be used from the UI thread.
+ */
+class LogAdapter extends BaseAdapter {
+	/** How many messages are kept; older ones are dropped. */
+	static final int CAPACITY = 1000;
+
+	private final LayoutInflater mInflater;
+	private final ListView mListView;
+	private final String[] mMessages = new String[CAPACITY];
+	/** The index in {@link #mMessages} of the oldest message. */
+	private int mStart;
+	private int mSize;
+	private boolean mChangePosted;
+
+	private final Runnable mNotifyChanged = new Runnable() {
+		@Override
+		public void run() {
+			mChangePosted = false;
+			notifyDataSetChanged();
+		}
+	};
+
+	LogAdapter(ListView listView) {
+		mListView = listView;
+		mInflater = LayoutInflater.from(listView.getContext());
+	}
+
+	void append(String message) {
+		if (mSize < CAPACITY) {
+			mMessages[(mStart + mSize++) % CAPACITY] = message;
+		} else {
+			mMessages[mStart] = message;
+			mStart = (mStart + 1) % CAPACITY;
+		}
+		if (!mChangePosted) {
+			mChangePosted = true;
+			postOnNextFrame(mNotifyChanged);
+		}
+	}
+
+	void appendAll(List<String> messages) {
+		for (String message : messages) {
+			append(message);
+		}
+	}
+
+	void clear() {
+		for (int i = 0; i < mSize; i++) {
+			mMessages[(mStart + i) % CAPACITY] = null;
+		}
+		mStart = 0;
+		mSize = 0;
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * @return Up to the last {@code count} messages, oldest first.
+	 */
+	ArrayList<String> tail(int count) {
+		int n = Math.min(count, mSize);
+		ArrayList<String> tail = new ArrayList<String>(n);
+		for (int i = mSize - n; i < mSize; i++) {
+			tail.add(getItem(i));
+		}
+		return tail;
+	}
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private void postOnNextFrame(Runnable action) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			mListView.postOnAnimation(action);
+		} else {
+			mListView.post(action);
+		}
+	}
+
+	@Override
+	public int getCount() {
+		return mSize;
+	}
+
+	@Override
+	public String getItem(int position) {
+		return mMessages[(mStart + position) % CAPACITY];
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return position;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		TextView view = (TextView) (convertView != null ? convertView
+				: mInflater.inflate(R.layout.log_line, parent, false));
+		view.setText(getItem(position));
+		return view;
+	}
+}
@@ -0,0 +1,197 @@
+package edu.kufpg.bluetooth.client;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A compressor and decompressor for the LZ4 block format: a stream of sequences, each holding a
+ * run of literal bytes followed by a back-reference (a 16-bit little-endian offset and a length)
+ * into the bytes already produced. Matches are found greedily through a hash table of recent
+ * 4-byte prefixes; the tables are pooled, since clearing one is much cheaper than allocating it.
+ */
+class Lz4Codec extends CompressionCodec {
+	private static final int MIN_MATCH = 4;
+	private static final int HASH_LOG = 12;
+	private static final int MAX_OFFSET = 65535;
+
+	/** The last match must start at least this far from the end of the input. */
+	private static final int MF_LIMIT = 12;
+
+	/** The input always ends with at least this many literals. */
+	private static final int LAST_LITERALS = 5;
+
+	private static final int POOL_SIZE = 16;
+
+	private final Queue<int[]> mTables = new ConcurrentLinkedQueue<int[]>();
+
+	@Override
+	public int getId() {
+		return ID_LZ4;
+	}
+
+	@Override
+	public String getName() {
+		return "lz4";
+	}
+
+	@Override
+	public int compress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstLen) {
+		int[] table = mTables.poll();
+		if (table == null) {
+			table = new int[1 << HASH_LOG];
+		}
+		try {
+			return compress(src, off, len, dst, dstOff, dstLen, table);
+		} finally {
+			if (mTables.size() < POOL_SIZE) {
+				mTables.add(table);
+			}
+		}
+	}
+
+	private static int compress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstLen, int[] table) {
+		Arrays.fill(table, -1);
+		int end = off + len;
+		int dstEnd = dstOff + dstLen;
+		int anchor = off;
+		int ip = off;
+		int dp = dstOff;
+		if (len >= MF_LIMIT) {
+			int matchLimit = end - LAST_LITERALS;
+			int mfLimit = end - MF_LIMIT;
+			while (ip < mfLimit) {
+				int sequence = readInt(src, ip);
+				int h = hash(sequence);
+				int ref = table[h];
+				table[h] = ip;
+				if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+					ip++;
+					continue;
+				}
+				while (ip > anchor && ref > off && src[ip - 1] == src[ref - 1]) {
+					ip--;
+					ref--;
+				}
+				int matchLength = MIN_MATCH;
+				while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+					matchLength++;
+				}
+				dp = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, dp, dstEnd);
+				if (dp < 0) {
+					return -1;
+				}
+				ip += matchLength;
+				anchor = ip;
+			}
+		}
+		dp = writeSequence(src, anchor, end - anchor, 0, 0, dst, dp, dstEnd);
+		return dp < 0 ? -1 : dp - dstOff;
+	}
+
+	/**
+	 * Writes one sequence; a {@code matchLength} of 0 writes the final, literal-only sequence.
+	 * @return The new output position, or -1 if the sequence does not fit.
+	 */
+	private static int writeSequence(byte[] src, int literalStart, int literalLength, int offset, int matchLength,
+			byte[] dst, int dp, int dstEnd) {
+		int needed = 1 + literalLength / 255 + 1 + literalLength + (matchLength == 0 ? 0 : 2 + matchLength / 255 + 1);
+		if (dp + needed > dstEnd) {
+			return -1;
+		}
+		int tokenPos = dp++;
+		int token;
+		if (literalLength >= 15) {
+			token = 15 << 4;
+			dp = writeLength(dst, dp, literalLength - 15);
+		} else {
+			token = literalLength << 4;
+		}
+		System.arraycopy(src, literalStart, dst, dp, literalLength);
+		dp += literalLength;
+		if (matchLength > 0) {
+			dst[dp++] = (byte) offset;
+			dst[dp++] = (byte) (offset >>> 8);
+			int extra = matchLength - MIN_MATCH;
+			if (extra >= 15) {
+				token |= 15;
+				dp = writeLength(dst, dp, extra - 15);
+			} else {
+				token |= extra;
+			}
+		}
+		dst[tokenPos] = (byte) token;
+		return dp;
+	}
+
+	private static int writeLength(byte[] dst, int dp, int length) {
+		while (length >= 255) {
+			dst[dp++] = (byte) 255;
+			length -= 255;
+		}
+		dst[dp++] = (byte) length;
+		return dp;
+	}
+
+	@Override
+	public void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int originalLength)
+			throws ProtocolException {
+		int ip = off;
+		int end = off + len;
+		int dp = dstOff;
+		int dstEnd = dstOff + originalLength;
+		try {
+			while (true) {
+				int token = src[ip++] & 0xFF;
+				int literalLength = token >>> 4;
+				if (literalLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						literalLength += b;
+					} while (b == 255);
+				}
+				if (ip + literalLength > end || dp + literalLength > dstEnd) {
+					throw new ProtocolException("Corrupt LZ4 literals");
+				}
+				System.arraycopy(src, ip, dst, dp, literalLength);
+				ip += literalLength;
+				dp += literalLength;
+				if (ip == end) {
+					break;
+				}
+
+				int offset = (src[ip++] & 0xFF) | (src[ip++] & 0xFF) << 8;
+				int matchLength = token & 15;
+				if (matchLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						matchLength += b;
+					} while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+				if (offset == 0 || dp - offset < dstOff || dp + matchLength > dstEnd) {
+					throw new ProtocolException("Corrupt LZ4 match");
+				}
+				// Byte by byte: a match may overlap the bytes it is producing
+				for (int ref = dp - offset, i = 0; i < matchLength; i++) {
+					dst[dp++] = dst[ref + i];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new ProtocolException("Truncated LZ4 payload");
+		}
+		if (dp != dstEnd) {
+			throw new ProtocolException("LZ4 payload decompressed to " + (dp - dstOff) + " bytes, expected " + originalLength);
+		}
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+}
@@ -1,9 +1,9 @@
 package edu.kufpg.bluetooth.client;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 import android.app.Activity;
 import android.app.Application;
@@ -14,28 +14,34 @@ import android.app.Application;
  * between this class and {@link BaseApplication} is that this class does not require Guava
  * as a dependency, which eliminates the need for a 2 MB library (at the cost of slightly
  * more overhead).
+ * <p>
+ * Tasks are dropped from the registry as soon as they finish or are cancelled, and adding,
+ * removing, attaching, and detaching each take constant time per task, so a long session that
+ * runs thousands of tasks neither leaks them nor slows down rotation. Tasks only hold weak
+ * references to their activities.
  * @param <A> The {@code Activity} class being managed.
  */
 public class NoGuavaBaseApplication<A extends Activity> extends Application {
 	/**
 	 * An {@link Activity} can spawn any number of {@link android.os.AsyncTask AsyncTasks}
 	 * simultaneously, so use a {@link Map} to connect an {@code Activity}'s name and
-	 * its {@link AsyncActivityTask AsyncActivityTasks}.
+	 * its running {@link AsyncActivityTask AsyncActivityTasks}. A {@link Set} (in start order)
+	 * lets a finished task be removed without searching for it.
 	 */
-	private Map<String, List<AsyncActivityTask<A,?,?,?>>> mActivityTaskMap =
-			new HashMap<String, List<AsyncActivityTask<A,?,?,?>>>();
+	private final Map<String, Set<AsyncActivityTask<A,?,?,?>>> mActivityTaskMap =
+			new HashMap<String, Set<AsyncActivityTask<A,?,?,?>>>();
 
 	/**
 	 * Removes unused {@link AsyncActivityTask AsyncActivityTasks} after they have
 	 * completed execution.
-	 * @param activity The {@link Activity} that spawned the {@code AsyncActivityTask}.
+	 * @param activity The {@link Activity} that spawned the {@code AsyncActivityTask}. Unused,
+	 * since the task remembers which {@code Activity} class it belongs to; may be {@code null}.
 	 * @param task The {@code AsyncActivityTask} to remove.
 	 */
 	public void removeTask(A activity, AsyncActivityTask<A,?,?,?> task) {
-		String key = activity.getClass().getCanonicalName();
-		List<AsyncActivityTask<A,?,?,?>> tasks = mActivityTaskMap.get(key);
-		tasks.remove(activity);
-		if (tasks.size() == 0) {
+		String key = task.getActivityKey();
+		Set<AsyncActivityTask<A,?,?,?>> tasks = mActivityTaskMap.get(key);
+		if (tasks != null && tasks.remove(task) && tasks.isEmpty()) {
 			mActivityTaskMap.remove(key);
 		}
 	}
@@ -47,10 +53,10 @@ public class NoGuavaBaseApplication<A extends Activity> extends Application {
 	 * @param task The {@code AsyncActivityTask} to connect.
 	 */
 	public void addTask(A activity, AsyncActivityTask<A,?,?,?> task) {
-		String key = activity.getClass().getCanonicalName();
-		List<AsyncActivityTask<A,?,?,?>> tasks = mActivityTaskMap.get(key);
+		String key = task.getActivityKey();
+		Set<AsyncActivityTask<A,?,?,?>> tasks = mActivityTaskMap.get(key);
 		if (tasks == null) {
-			tasks = new ArrayList<AsyncActivityTask<A,?,?,?>>();
+			tasks = new LinkedHashSet<AsyncActivityTask<A,?,?,?>>();
 			mActivityTaskMap.put(key, tasks);
 		}
 
@@ -65,7 +71,7 @@ public class NoGuavaBaseApplication<A extends Activity> extends Application {
 	 * @param activity The {@code Activity} whose references should be set to null.
 	 */
 	public void detachActivity(A activity) {
-		List<AsyncActivityTask<A,?,?,?>> tasks = mActivityTaskMap.get(activity.getClass().getCanonicalName());
+		Set<AsyncActivityTask<A,?,?,?>> tasks = mActivityTaskMap.get(AsyncActivityTask.keyOf(activity));
 		if (tasks != null) {
 			for (AsyncActivityTask<A,?,?,?> task : tasks) {
 				task.setActivity(null);
@@ -79,7 +85,7 @@ public class NoGuavaBaseApplication<A extends Activity> extends Application {
 	 * @param activity The {@code Activity} whose references should be reestablished.
 	 */
 	public void attachActivity(A activity) {
-		List<AsyncActivityTask<A,?,?,?>> tasks = mActivityTaskMap.get(activity.getClass().getCanonicalName());
+		Set<AsyncActivityTask<A,?,?,?>> tasks = mActivityTaskMap.get(AsyncActivityTask.keyOf(activity));
 		if (tasks != null) {
 			for (AsyncActivityTask<A,?,?,?> task : tasks) {
 				task.setActivity(activity);
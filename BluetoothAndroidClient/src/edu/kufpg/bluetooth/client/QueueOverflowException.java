@@ -0,0 +1,15 @@
+package edu.kufpg.bluetooth.client;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request cannot be sent because the connection's send queue is full, and the
+ * {@link FlowControlPolicy.Overflow} policy does not allow waiting for room (or the wait timed out).
+ */
+public class QueueOverflowException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public QueueOverflowException(String message) {
+		super(message);
+	}
+}
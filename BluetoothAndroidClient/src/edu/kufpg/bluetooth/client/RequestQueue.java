@@ -0,0 +1,177 @@
+package edu.kufpg.bluetooth.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Sends requests from the UI without tying up an {@link android.os.AsyncTask}. Requests wait in a
+ * bounded queue (at most {@link #CAPACITY} of them) for a dedicated writer thread, which connects
+ * if necessary and writes them out one after another without waiting for responses; each
+ * connection's reader thread then matches up the responses (see {@link BluetoothConnectionManager}).
+ * <p>
+ * Finished requests are handed to the {@link Listener} on the UI thread in batches: every result
+ * that arrives before the UI thread gets around to delivering is included in the same call. While
+ * no listener is set (say, during rotation), results are held until one is.
+ */
+public class RequestQueue implements Runnable {
+	private static final String TAG = "RequestQueue";
+
+	/** How many requests may wait to be written before {@link #submit} refuses more. */
+	public static final int CAPACITY = 64;
+
+	/**
+	 * Told about finished requests on the UI thread.
+	 */
+	public interface Listener {
+		/**
+		 * @param results Every request that finished since the last call, in the order they finished.
+		 */
+		void onCompleted(List<Result> results);
+	}
+
+	private final BluetoothConnectionManager mManager;
+	private final BlockingQueue<Result> mOutbound = new ArrayBlockingQueue<Result>(CAPACITY);
+	private final Queue<Result> mCompleted = new ConcurrentLinkedQueue<Result>();
+	private final AtomicBoolean mDeliveryPosted = new AtomicBoolean();
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private Listener mListener;
+	private Thread mWriter;
+
+	private final Runnable mDeliver = new Runnable() {
+		@Override
+		public void run() {
+			mDeliveryPosted.set(false);
+			if (mListener == null) {
+				return;
+			}
+			List<Result> results = new ArrayList<Result>();
+			Result result;
+			while ((result = mCompleted.poll()) != null) {
+				results.add(result);
+			}
+			if (!results.isEmpty()) {
+				mListener.onCompleted(results);
+			}
+		}
+	};
+
+	public RequestQueue(BluetoothConnectionManager manager) {
+		mManager = manager;
+	}
+
+	/**
+	 * Queues a request. Must be called from the UI thread.
+	 * @return {@code false} if {@link #CAPACITY} requests are already waiting.
+	 */
+	public boolean submit(BluetoothDevice device, String message) {
+		if (!mOutbound.offer(new Result(device, message))) {
+			return false;
+		}
+		if (mWriter == null) {
+			mWriter = new Thread(this, "bt-writer");
+			mWriter.setDaemon(true);
+			mWriter.start();
+		}
+		return true;
+	}
+
+	/**
+	 * Sets who is told about finished requests, delivering any results that arrived while there
+	 * was no listener. Must be called from the UI thread.
+	 * @param listener The listener, or {@code null} to hold results until one is set.
+	 */
+	public void setListener(Listener listener) {
+		mListener = listener;
+		if (listener != null && !mCompleted.isEmpty()) {
+			mDeliver.run();
+		}
+	}
+
+	/**
+	 * The writer thread: writes each queued request as soon as the previous one is written.
+	 */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				final Result request = mOutbound.take();
+				try {
+					mManager.send(request.mDevice, request.mRequest, BluetoothConnectionManager.DEFAULT_TIMEOUT_MS,
+							new BluetoothConnectionManager.ResponseCallback() {
+						@Override
+						public void onResponse(String response) {
+							complete(request, response, null);
+						}
+
+						@Override
+						public void onFailure(IOException e) {
+							complete(request, null, e);
+						}
+					});
+				} catch (IOException e) {
+					Log.w(TAG, "Sending to " + request.mDevice.getAddress() + " failed", e);
+					complete(request, null, e);
+				}
+			}
+		} catch (InterruptedException e) {
+			Log.w(TAG, "Writer interrupted; " + mOutbound.size() + " requests left unsent");
+		}
+	}
+
+	private void complete(Result result, String response, IOException error) {
+		result.mResponse = response;
+		result.mError = error;
+		mCompleted.add(result);
+		if (mDeliveryPosted.compareAndSet(false, true)) {
+			mHandler.post(mDeliver);
+		}
+	}
+
+	/**
+	 * One request and how it ended.
+	 */
+	public static class Result {
+		private final BluetoothDevice mDevice;
+		private final String mRequest;
+		private volatile String mResponse;
+		private volatile IOException mError;
+
+		Result(BluetoothDevice device, String request) {
+			mDevice = device;
+			mRequest = request;
+		}
+
+		public BluetoothDevice getDevice() {
+			return mDevice;
+		}
+
+		public String getRequest() {
+			return mRequest;
+		}
+
+		/**
+		 * @return The server's response, or {@code null} if the request failed.
+		 */
+		public String getResponse() {
+			return mResponse;
+		}
+
+		/**
+		 * @return Why the request failed, or {@code null} if it succeeded.
+		 */
+		public IOException getError() {
+			return mError;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package edu.kufpg.bluetooth.client;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+import android.util.Log;
+
+/**
+ * Asks devices which services they offer, with an SDP query each, so that devices not running
+ * our server can be recognized without a failed connection attempt. Queries go out one at a time,
+ * since a Bluetooth controller handles concurrent SDP queries (and queries during discovery)
+ * poorly; a device that does not answer within {@link #TIMEOUT_MS} is skipped.
+ * <p>
+ * SDP queries need Android 4.0.3; on older versions {@link #isSupported()} is {@code false}
+ * and {@link #probe} does nothing. Must only be used from the UI thread.
+ */
+@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1)
+class ServiceProbe {
+	private static final String TAG = "ServiceProbe";
+
+	static final long TIMEOUT_MS = 10000;
+
+	/**
+	 * Told about each device whose services have been fetched.
+	 */
+	interface Listener {
+		/**
+		 * @param hasService Whether the device advertises {@link BluetoothClientActivity#MY_UUID}.
+		 */
+		void onServiceFound(BluetoothDevice device, boolean hasService);
+	}
+
+	private final Context mContext;
+	private final Listener mListener;
+	private final Handler mHandler = new Handler();
+	private final Queue<BluetoothDevice> mQueue = new LinkedList<BluetoothDevice>();
+	private BluetoothDevice mCurrent;
+	private boolean mRegistered;
+
+	private final Runnable mTimeout = new Runnable() {
+		@Override
+		public void run() {
+			Log.d(TAG, "No SDP answer from " + mCurrent.getAddress());
+			mCurrent = null;
+			next();
+		}
+	};
+
+	private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+			Parcelable[] uuids = intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID);
+			// A null list means the query failed; the device stays unknown rather than absent
+			if (uuids != null) {
+				mListener.onServiceFound(device, hasService(uuids));
+			}
+			if (mCurrent != null && mCurrent.getAddress().equals(device.getAddress())) {
+				mHandler.removeCallbacks(mTimeout);
+				mCurrent = null;
+				next();
+			}
+		}
+	};
+
+	ServiceProbe(Context context, Listener listener) {
+		mContext = context;
+		mListener = listener;
+	}
+
+	static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1;
+	}
+
+	/**
+	 * Queues an SDP query for the device, unless one is already queued or running.
+	 */
+	void probe(BluetoothDevice device) {
+		if (!isSupported()) {
+			return;
+		}
+		if (!mRegistered) {
+			mContext.registerReceiver(mReceiver, new IntentFilter(BluetoothDevice.ACTION_UUID));
+			mRegistered = true;
+		}
+		if ((mCurrent != null && mCurrent.getAddress().equals(device.getAddress())) || mQueue.contains(device)) {
+			return;
+		}
+		mQueue.add(device);
+		if (mCurrent == null) {
+			next();
+		}
+	}
+
+	/**
+	 * Drops every queued query and stops listening for answers.
+	 */
+	void stop() {
+		mQueue.clear();
+		mHandler.removeCallbacks(mTimeout);
+		mCurrent = null;
+		if (mRegistered) {
+			mContext.unregisterReceiver(mReceiver);
+			mRegistered = false;
+		}
+	}
+
+	@SuppressLint("NewApi")
+	private void next() {
+		while ((mCurrent = mQueue.poll()) != null) {
+			if (mCurrent.fetchUuidsWithSdp()) {
+				mHandler.postDelayed(mTimeout, TIMEOUT_MS);
+				return;
+			}
+			Log.w(TAG, "Could not start an SDP query to " + mCurrent.getAddress());
+		}
+	}
+
+	private static boolean hasService(Parcelable[] uuids) {
+		for (Parcelable uuid : uuids) {
+			if (DeviceCache.isServiceUuid(((ParcelUuid) uuid).getUuid())) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,14 @@
+package edu.kufpg.bluetooth.client;
+
+/**
+ * Follows the progress of a {@link BluetoothConnectionManager#upload upload} or
+ * {@link BluetoothConnectionManager#download download}. Called on the transferring thread.
+ */
+public interface TransferListener {
+	/**
+	 * @param transferred How many bytes of the file have been sent or received so far, including
+	 * any that were transferred before a resume.
+	 * @param total The file's length, or -1 if it is not known yet.
+	 */
+	void onProgress(long transferred, long total);
+}
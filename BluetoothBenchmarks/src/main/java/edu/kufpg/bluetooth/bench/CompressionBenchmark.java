@@ -0,0 +1,68 @@
+package edu.kufpg.bluetooth.bench;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.kufpg.bluetooth.server.CompressionCodec;
+import edu.kufpg.bluetooth.server.ProtocolException;
+
+/**
+ * Measures the CPU cost of the negotiable payload codecs on text, the kind of payload they are
+ * meant for. The compressed size is printed once per trial, since air time is what they save.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+	@Param({ "deflate", "lz4" })
+	public String codec;
+
+	@Param({ "256", "4096", "65536" })
+	public int payloadSize;
+
+	private CompressionCodec mCodec;
+	private byte[] mPayload;
+	private byte[] mCompressed;
+	private int mCompressedLength;
+	private byte[] mDecompressed;
+
+	@Setup
+	public void setUp() throws UnsupportedEncodingException {
+		mCodec = codec.equals("lz4") ? CompressionCodec.LZ4 : CompressionCodec.DEFLATE;
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; text.length() < payloadSize; i++) {
+			text.append("Greetings from serverland, request ").append(i).append(" of a chatty session\n");
+		}
+		mPayload = text.substring(0, payloadSize).getBytes("UTF-8");
+		mCompressed = new byte[mPayload.length];
+		mCompressedLength = mCodec.compress(mPayload, 0, mPayload.length, mCompressed, 0, mCompressed.length);
+		mDecompressed = new byte[mPayload.length];
+		System.out.println("\n" + codec + ": " + mPayload.length + " -> " + mCompressedLength + " bytes");
+	}
+
+	@Benchmark
+	public int compress() {
+		return mCodec.compress(mPayload, 0, mPayload.length, mCompressed, 0, mCompressed.length);
+	}
+
+	@Benchmark
+	public byte[] decompress() throws ProtocolException {
+		mCodec.decompress(mCompressed, 0, mCompressedLength, mDecompressed, 0, mDecompressed.length);
+		return mDecompressed;
+	}
+}
@@ -0,0 +1,75 @@
+package edu.kufpg.bluetooth.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import edu.kufpg.bluetooth.server.Connection;
+import edu.kufpg.bluetooth.server.Frame;
+import edu.kufpg.bluetooth.server.FrameDecoder;
+
+/**
+ * A minimal blocking client for the frame protocol, speaking it the same way the Android
+ * client's connection manager does: tag each request with a fresh ID, write it, and match the
+ * response by ID, answering the server's heartbeat pings while it waits. Not thread-safe; use
+ * one per thread.
+ */
+public class FrameClient {
+	private final Connection mConnection;
+	private final InputStream mIn;
+	private final OutputStream mOut;
+	private final FrameDecoder mDecoder = new FrameDecoder();
+	private final byte[] mScratch = new byte[8192];
+	private int mNextId;
+
+	public FrameClient(Connection connection) throws IOException {
+		mConnection = connection;
+		mIn = connection.getInputStream();
+		mOut = connection.getOutputStream();
+	}
+
+	/**
+	 * Sends one request and waits for its response.
+	 * @return The response frame.
+	 * @throws IOException if the connection fails or the server answers out of order.
+	 */
+	public Frame call(byte[] payload) throws IOException {
+		int id = ++mNextId;
+		mOut.write(new Frame(Frame.TYPE_REQUEST, 0, id, payload).encode());
+		mOut.flush();
+		return await(id);
+	}
+
+	/**
+	 * Sends {@code depth} requests back to back, then waits for all of their responses.
+	 */
+	public void pipeline(byte[] payload, int depth) throws IOException {
+		int first = mNextId + 1;
+		for (int i = 0; i < depth; i++) {
+			mOut.write(new Frame(Frame.TYPE_REQUEST, 0, ++mNextId, payload).encode());
+		}
+		mOut.flush();
+		for (int id = first; id <= mNextId; id++) {
+			await(id);
+		}
+	}
+
+	private Frame await(int id) throws IOException {
+		Frame response;
+		while ((response = mDecoder.read(mIn, mScratch)) != null && response.getType() == Frame.TYPE_PING) {
+			mOut.write(response.reply(Frame.TYPE_PONG, response.getPayload()).encode());
+			mOut.flush();
+		}
+		if (response == null) {
+			throw new IOException("Server closed the connection");
+		}
+		if (response.getRequestId() != id) {
+			throw new IOException("Expected response " + id + ", got " + response.getRequestId());
+		}
+		return response;
+	}
+
+	public void close() throws IOException {
+		mConnection.close();
+	}
+}
@@ -0,0 +1,75 @@
+package edu.kufpg.bluetooth.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.kufpg.bluetooth.server.Frame;
+import edu.kufpg.bluetooth.server.FrameDecoder;
+import edu.kufpg.bluetooth.server.ProtocolException;
+
+/**
+ * Measures encoding and decoding single frames, with and without checksums, and decoding a
+ * frame that arrives in small pieces the way it does over RFCOMM.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameCodecBenchmark {
+	@Param({ "16", "256", "4096" })
+	public int payloadSize;
+
+	@Param({ "false", "true" })
+	public boolean checksum;
+
+	/** The chunk size for {@link #decodeFragmented()}, roughly a small RFCOMM packet. */
+	private static final int FRAGMENT = 127;
+
+	private Frame mFrame;
+	private byte[] mEncoded;
+	private FrameDecoder mDecoder;
+
+	@Setup
+	public void setUp() {
+		byte[] payload = new byte[payloadSize];
+		new Random(42).nextBytes(payload);
+		mFrame = new Frame(Frame.TYPE_REQUEST, checksum ? Frame.FLAG_CHECKSUM : 0, 7, payload);
+		mEncoded = mFrame.encode();
+		mDecoder = new FrameDecoder();
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return mFrame.encode();
+	}
+
+	@Benchmark
+	public Frame decode() throws ProtocolException {
+		mDecoder.feed(mEncoded, 0, mEncoded.length);
+		return mDecoder.poll();
+	}
+
+	@Benchmark
+	public Frame decodeFragmented() throws ProtocolException {
+		Frame frame = null;
+		for (int off = 0; off < mEncoded.length; off += FRAGMENT) {
+			mDecoder.feed(mEncoded, off, Math.min(FRAGMENT, mEncoded.length - off));
+			frame = mDecoder.poll();
+		}
+		return frame;
+	}
+}
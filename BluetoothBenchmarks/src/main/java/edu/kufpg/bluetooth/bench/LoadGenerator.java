@@ -0,0 +1,195 @@
+package edu.kufpg.bluetooth.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.kufpg.bluetooth.server.LatencyHistogram;
+import edu.kufpg.bluetooth.server.TcpTransport;
+
+/**
+ * Simulates many Android devices talking to a server over TCP (start the server with
+ * {@code tcp:<port>} or {@code nio:<port>}). Each simulated device runs on its own thread and
+ * behaves like the app: connect, send requests with some think time between them, and
+ * occasionally drop the connection and reconnect. A device whose connection or request fails
+ * backs off before trying again, so a server that is down is not hammered. Throughput and
+ * latency percentiles are reported every few seconds and at the end.
+ * <p>
+ * Usage: {@code LoadGenerator <host>:<port> [devices:<n>] [duration:<seconds>]
+ * [think:<ms>] [size:<min>-<max>] [churn:<requests per connection>] [report:<seconds>]}
+ */
+public class LoadGenerator {
+	/** The pause after a device's first failure in a row; it doubles with each further one. */
+	private static final long MIN_BACKOFF_MILLIS = 100;
+	private static final long MAX_BACKOFF_MILLIS = 5000;
+
+	private final InetSocketAddress mAddress;
+	private int mDevices = 100;
+	private long mDurationSeconds = 30;
+	private long mThinkMillis = 100;
+	private int mMinSize = 16, mMaxSize = 256;
+
+	/** Reconnect after this many requests; 0 keeps each device's connection for the whole run. */
+	private int mChurn = 0;
+	private long mReportSeconds = 5;
+
+	private final LatencyHistogram mRequestLatency = new LatencyHistogram();
+	private final LatencyHistogram mConnectLatency = new LatencyHistogram();
+	private final AtomicLong mBytesSent = new AtomicLong();
+	private final AtomicLong mErrors = new AtomicLong();
+	private volatile boolean mStopped;
+
+	public LoadGenerator(InetSocketAddress address) {
+		mAddress = address;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		if (args.length == 0) {
+			System.err.println("Usage: LoadGenerator <host>:<port> [devices:<n>] [duration:<seconds>]"
+					+ " [think:<ms>] [size:<min>-<max>] [churn:<requests>] [report:<seconds>]");
+			System.exit(1);
+		}
+		int colon = args[0].lastIndexOf(':');
+		LoadGenerator generator = new LoadGenerator(new InetSocketAddress(
+				args[0].substring(0, colon), Integer.parseInt(args[0].substring(colon + 1))));
+		for (int i = 1; i < args.length; i++) {
+			String arg = args[i];
+			String value = arg.substring(arg.indexOf(':') + 1);
+			if (arg.startsWith("devices:")) {
+				generator.mDevices = Integer.parseInt(value);
+			} else if (arg.startsWith("duration:")) {
+				generator.mDurationSeconds = Long.parseLong(value);
+			} else if (arg.startsWith("think:")) {
+				generator.mThinkMillis = Long.parseLong(value);
+			} else if (arg.startsWith("size:")) {
+				int dash = value.indexOf('-');
+				generator.mMinSize = Integer.parseInt(dash < 0 ? value : value.substring(0, dash));
+				generator.mMaxSize = dash < 0 ? generator.mMinSize : Integer.parseInt(value.substring(dash + 1));
+				if (generator.mMinSize < 0 || generator.mMinSize > generator.mMaxSize) {
+					throw new IllegalArgumentException("Bad size range: " + value);
+				}
+			} else if (arg.startsWith("churn:")) {
+				generator.mChurn = Integer.parseInt(value);
+			} else if (arg.startsWith("report:")) {
+				generator.mReportSeconds = Long.parseLong(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+		generator.run();
+	}
+
+	public void run() throws InterruptedException {
+		System.out.println("Simulating " + mDevices + " devices against " + mAddress + " for "
+				+ mDurationSeconds + " s (think " + mThinkMillis + " ms, " + mMinSize + "-" + mMaxSize
+				+ " byte messages, " + (mChurn == 0 ? "no churn" : "reconnect every " + mChurn + " requests") + ")");
+
+		final CountDownLatch done = new CountDownLatch(mDevices);
+		for (int i = 0; i < mDevices; i++) {
+			final int device = i;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						simulateDevice(new Random(device));
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "device-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(mDurationSeconds);
+		long lastRequests = 0, lastReport = start;
+		while (System.nanoTime() < end) {
+			long sleep = Math.min(TimeUnit.SECONDS.toNanos(mReportSeconds), end - System.nanoTime());
+			TimeUnit.NANOSECONDS.sleep(Math.max(0, sleep));
+			long now = System.nanoTime();
+			long requests = mRequestLatency.getCount();
+			System.out.printf("%5.1fs  %8.1f req/s  %s%n", (now - start) / 1e9,
+					(requests - lastRequests) / ((now - lastReport) / 1e9), mRequestLatency.summarize());
+			lastRequests = requests;
+			lastReport = now;
+		}
+		mStopped = true;
+		done.await(10, TimeUnit.SECONDS);
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println("--- totals ---");
+		System.out.printf("requests: %d (%.1f req/s), sent %.1f KB/s, errors: %d%n", mRequestLatency.getCount(),
+				mRequestLatency.getCount() / seconds, mBytesSent.get() / 1024.0 / seconds, mErrors.get());
+		System.out.println("request latency: " + mRequestLatency.summarize());
+		System.out.println("connect latency: " + mConnectLatency.summarize());
+	}
+
+	private void simulateDevice(Random random) {
+		FrameClient client = null;
+		int sent = 0;
+		int failures = 0;
+		while (!mStopped) {
+			try {
+				if (client == null) {
+					long connectStart = System.nanoTime();
+					client = new FrameClient(TcpTransport.connect(mAddress));
+					mConnectLatency.recordSince(connectStart);
+					sent = 0;
+				}
+
+				byte[] payload = new byte[mMinSize + random.nextInt(mMaxSize - mMinSize + 1)];
+				random.nextBytes(payload);
+				long requestStart = System.nanoTime();
+				client.call(payload);
+				mRequestLatency.recordSince(requestStart);
+				mBytesSent.addAndGet(payload.length);
+				failures = 0;
+
+				if (mChurn > 0 && ++sent >= mChurn) {
+					client.close();
+					client = null;
+				}
+				if (mThinkMillis > 0) {
+					// Jitter think time by +/-50% so devices do not fall into lockstep
+					Thread.sleep(mThinkMillis / 2 + (long) (random.nextDouble() * mThinkMillis));
+				}
+			} catch (IOException e) {
+				mErrors.incrementAndGet();
+				client = closeQuietly(client);
+				try {
+					Thread.sleep(Math.max(mThinkMillis, backoff(failures++, random)));
+				} catch (InterruptedException interrupted) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		closeQuietly(client);
+	}
+
+	/**
+	 * @return How long to wait after {@code failures} earlier failures in a row: half of the
+	 * exponentially growing ceiling, plus a random part of the other half.
+	 */
+	private static long backoff(int failures, Random random) {
+		long ceiling = MIN_BACKOFF_MILLIS << Math.min(failures, 16);
+		ceiling = Math.min(ceiling, MAX_BACKOFF_MILLIS);
+		return ceiling / 2 + (long) (random.nextDouble() * (ceiling / 2));
+	}
+
+	private static FrameClient closeQuietly(FrameClient client) {
+		if (client != null) {
+			try {
+				client.close();
+			} catch (IOException e) {
+				// Already broken
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,124 @@
+package edu.kufpg.bluetooth.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.kufpg.bluetooth.server.BluetoothServer;
+import edu.kufpg.bluetooth.server.NioServer;
+import edu.kufpg.bluetooth.server.ServerLog;
+import edu.kufpg.bluetooth.server.TcpTransport;
+
+/**
+ * Measures end-to-end request/response round trips over loopback TCP, against either the
+ * blocking thread-per-session engine or the selector-driven {@link NioServer}. Each benchmark
+ * thread is one client with its own connection.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackRoundTripBenchmark {
+	@State(Scope.Benchmark)
+	public static class Server {
+		@Param({ "blocking", "nio" })
+		public String engine;
+
+		InetSocketAddress mAddress;
+		TcpTransport mTransport;
+		NioServer mNioServer;
+
+		@Setup(Level.Trial)
+		public void start() throws IOException {
+			ServerLog.setEnabled(false);
+			InetSocketAddress bind = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+			if (engine.equals("nio")) {
+				mNioServer = new NioServer(new BluetoothServer(null, 1), bind,
+						Runtime.getRuntime().availableProcessors());
+				mNioServer.start();
+				mAddress = mNioServer.getLocalAddress();
+			} else {
+				mTransport = new TcpTransport(bind);
+				mAddress = mTransport.getLocalAddress();
+				final BluetoothServer server = new BluetoothServer(mTransport, 1024);
+				Thread acceptor = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							server.serve();
+						} catch (IOException e) {
+							// Closed at teardown
+						}
+					}
+				}, "bench-server");
+				acceptor.setDaemon(true);
+				acceptor.start();
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() throws IOException {
+			if (mNioServer != null) {
+				mNioServer.close();
+			}
+			if (mTransport != null) {
+				mTransport.close();
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+		@Param({ "32", "1024" })
+		public int payloadSize;
+
+		FrameClient mClient;
+		byte[] mPayload;
+
+		@Setup(Level.Trial)
+		public void connect(Server server) throws IOException {
+			mClient = new FrameClient(TcpTransport.connect(server.mAddress));
+			mPayload = new byte[payloadSize];
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			mClient.close();
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void clients001(Client client) throws IOException {
+		client.mClient.call(client.mPayload);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void clients016(Client client) throws IOException {
+		client.mClient.call(client.mPayload);
+	}
+
+	@Benchmark
+	@Threads(256)
+	public void clients256(Client client) throws IOException {
+		client.mClient.call(client.mPayload);
+	}
+}
@@ -0,0 +1,113 @@
+package edu.kufpg.bluetooth.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.kufpg.bluetooth.server.BluetoothServer;
+import edu.kufpg.bluetooth.server.PipeTransport;
+import edu.kufpg.bluetooth.server.ServerLog;
+
+/**
+ * Measures the server's per-connection read/dispatch/write loop over the in-memory
+ * {@link PipeTransport}, so that no socket or radio cost is included. Each benchmark thread is
+ * one client with its own session.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerLoopBenchmark {
+	@State(Scope.Benchmark)
+	public static class Server {
+		PipeTransport mTransport;
+
+		@Setup(Level.Trial)
+		public void start() {
+			ServerLog.setEnabled(false);
+			mTransport = new PipeTransport();
+			final BluetoothServer server = new BluetoothServer(mTransport, 1024);
+			Thread acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						server.serve();
+					} catch (IOException e) {
+						// Closed at teardown
+					}
+				}
+			}, "bench-server");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() {
+			mTransport.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+		@Param({ "32", "1024" })
+		public int payloadSize;
+
+		@Param({ "1", "8" })
+		public int pipelineDepth;
+
+		FrameClient mClient;
+		byte[] mPayload;
+
+		@Setup(Level.Trial)
+		public void connect(Server server) throws IOException {
+			mClient = new FrameClient(server.mTransport.connect());
+			mPayload = new byte[payloadSize];
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			mClient.close();
+		}
+
+		void exchange() throws IOException {
+			if (pipelineDepth == 1) {
+				mClient.call(mPayload);
+			} else {
+				mClient.pipeline(mPayload, pipelineDepth);
+			}
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void clients001(Client client) throws IOException {
+		client.exchange();
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void clients016(Client client) throws IOException {
+		client.exchange();
+	}
+
+	@Benchmark
+	@Threads(256)
+	public void clients256(Client client) throws IOException {
+		client.exchange();
+	}
+}
@@ -0,0 +1,37 @@
+package edu.kufpg.bluetooth.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs another {@link RequestHandler} on an {@link Executor}, so that slow work (disk, network,
+ * heavy computation) does not hold up the session's read loop while it is being done. Any
+ * exception thrown by the wrapped handler is turned into an {@link Frame#TYPE_ERROR} response.
+ */
+public class AsyncRequestHandler implements RequestHandler {
+	private final RequestHandler mDelegate;
+	private final Executor mExecutor;
+
+	public AsyncRequestHandler(RequestHandler delegate, Executor executor) {
+		mDelegate = delegate;
+		mExecutor = executor;
+	}
+
+	@Override
+	public void handle(final Frame request, final Responder responder) {
+		try {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						mDelegate.handle(request, responder);
+					} catch (Exception e) {
+						responder.respond(HandlerRegistry.errorResponse(request, e));
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			responder.respond(request.reply(Frame.TYPE_ERROR, "Server busy"));
+		}
+	}
+}
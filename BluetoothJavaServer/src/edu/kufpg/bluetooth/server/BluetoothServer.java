@@ -1,69 +1,536 @@
 package edu.kufpg.bluetooth.server;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.bluetooth.LocalDevice;
-import javax.bluetooth.RemoteDevice;
-import javax.bluetooth.UUID;
-import javax.microedition.io.Connector;
-import javax.microedition.io.StreamConnection;
-import javax.microedition.io.StreamConnectionNotifier;
 
 public class BluetoothServer {
-	private static final String RESPONSE = "Greetings from serverland";
+	static final String RESPONSE = "Greetings from serverland";
 
-	// start server
-	private void startServer() throws IOException {
-		// Create a UUID for SPP
-		UUID uuid = new UUID("0000110100001000800000805F9B34FB", false);
-		// Create the servicve url
-		String connectionString = "btspp://localhost:" + uuid + ";name=Sample SPP Server";
+	/** How many clients may be served at once if no limit is given on the command line. */
+	public static final int DEFAULT_MAX_SESSIONS = 64;
 
-		// open server url
-		StreamConnectionNotifier streamConnNotifier = (StreamConnectionNotifier) Connector.open(connectionString);
+	/** How many remote device names are remembered, and for how long. */
+	private static final int NAME_CACHE_SIZE = 1024;
+	private static final long NAME_CACHE_TTL_MS = TimeUnit.MINUTES.toMillis(30);
 
-		// Wait for client connection
-		System.out.println("\nServer Started. Waiting for clients to connect...");
-		StreamConnection connection = streamConnNotifier.acceptAndOpen();
+	/** Lookups beyond this many waiting ones are skipped until a later connection. */
+	private static final int NAME_LOOKUP_QUEUE = 256;
 
-		RemoteDevice dev = RemoteDevice.getRemoteDevice(connection);
-		System.out.println("Remote device address: " + dev.getBluetoothAddress());
-		System.out.println("Remote device name: " + dev.getFriendlyName(true));
+	/** The session timeout wheel turns once every 51.2 s, in 100 ms ticks. */
+	private static final long WHEEL_TICK_MS = 100;
+	private static final int WHEEL_BUCKETS = 512;
 
-		// read string from spp client
-		InputStream inStream = connection.openInputStream();
-		BufferedReader bReader = new BufferedReader(new InputStreamReader(inStream));
-		String lineRead = bReader.readLine();
-		System.out.println("Message from mobile device: " + lineRead);
+	/** The service name advertised in the RFCOMM transport's SDP record. */
+	public static final String SERVICE_NAME = "Sample SPP Server";
 
-		// send response to spp client
-		OutputStream outStream = connection.openOutputStream();
-		PrintWriter pWriter = new PrintWriter(new OutputStreamWriter(outStream));
-		System.out.println("Sending response (" + RESPONSE + ")");
-		pWriter.write(RESPONSE + "\r\n");
-		pWriter.flush();
+	/** How long a shutdown waits for requests in flight if no limit is given on the command line. */
+	public static final long DEFAULT_DRAIN_MS = 10000;
 
-		pWriter.close();
+	private final Transport mTransport;
+	private final int mMaxSessions;
 
-		streamConnNotifier.close();
+	/** Runs one {@link ClientSession} per accepted connection. */
+	private final ExecutorService mWorkers;
+
+	/**
+	 * Caps the number of concurrent sessions. The accept loop takes a permit before accepting
+	 * another client, so a full server stops accepting instead of queuing clients
+	 * that would only time out.
+	 */
+	private final Semaphore mSessionPermits;
+
+	/** Runs delayed flushes of batched responses (and other short timed jobs). */
+	private final ScheduledExecutorService mTimer =
+			Executors.newSingleThreadScheduledExecutor(new SessionThreadFactory("timer"));
+
+	private volatile FlushPolicy mFlushPolicy = FlushPolicy.DEFAULT;
+
+	private volatile FlowControlPolicy mFlowControlPolicy = FlowControlPolicy.DEFAULT;
+
+	/** Times out every session's reads, writes and idleness; see {@link SessionWatchdog}. */
+	private final TimerWheel mWheel = new TimerWheel(WHEEL_TICK_MS, WHEEL_BUCKETS, new SessionThreadFactory("timer-wheel"));
+
+	private volatile TimeoutPolicy mTimeoutPolicy = TimeoutPolicy.DEFAULT;
+
+	private final HandlerRegistry mHandlers = new HandlerRegistry();
+
+	private final ServerMetrics mMetrics = new ServerMetrics();
+
+	private final AtomicLong mSessionIds = new AtomicLong();
+
+	/** The blocking sessions being served; guarded by itself, as is {@link #mStopped}. */
+	private final Set<ClientSession> mSessions = new HashSet<ClientSession>();
+	private boolean mStopped;
+
+	/** Event-driven engines serving this server's handlers; see {@link #attach(NioServer)}. */
+	private final List<NioServer> mEngines = new CopyOnWriteArrayList<NioServer>();
+
+	/** {@link Frame#TYPE_REQUEST}s dispatched and not yet answered, by every session. */
+	private final AtomicInteger mInFlight = new AtomicInteger();
+	private final Object mInFlightLock = new Object();
+	private volatile boolean mDraining;
+	private Thread mAcceptThread;
+
+	/** Resolves friendly names off the request path, two lookups at a time. */
+	private final RemoteNameCache mRemoteNames;
+
+	public BluetoothServer(Transport transport, int maxSessions) {
+		if (maxSessions < 1) {
+			throw new IllegalArgumentException("maxSessions must be positive: " + maxSessions);
+		}
+		mTransport = transport;
+		mMaxSessions = maxSessions;
+		mSessionPermits = new Semaphore(maxSessions);
+		ThreadPoolExecutor workers = new ThreadPoolExecutor(maxSessions, maxSessions,
+				30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new SessionThreadFactory("session"));
+		workers.allowCoreThreadTimeOut(true);
+		mWorkers = workers;
+
+		ThreadPoolExecutor nameLookups = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(NAME_LOOKUP_QUEUE), new SessionThreadFactory("name-lookup"));
+		nameLookups.allowCoreThreadTimeOut(true);
+		mRemoteNames = new RemoteNameCache(NAME_CACHE_SIZE, NAME_CACHE_TTL_MS, nameLookups, mMetrics);
+
+		register(Frame.TYPE_REQUEST, new RequestHandler() {
+			@Override
+			public void handle(Frame request, Responder responder) {
+				responder.respond(request.reply(Frame.TYPE_RESPONSE, RESPONSE));
+			}
+		});
+		register(Frame.TYPE_PING, new RequestHandler() {
+			@Override
+			public void handle(Frame request, Responder responder) {
+				responder.respond(request.reply(Frame.TYPE_PONG, request.getPayload()));
+			}
+		});
+	}
+
+	/**
+	 * Sets when sessions write out batched responses. Affects sessions started afterwards.
+	 */
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		mFlushPolicy = flushPolicy;
+	}
+
+	public FlushPolicy getFlushPolicy() {
+		return mFlushPolicy;
+	}
+
+	/**
+	 * Sets how much credit sessions grant clients that use flow control, and how many responses
+	 * may wait for theirs. Affects sessions started afterwards.
+	 */
+	public void setFlowControlPolicy(FlowControlPolicy flowControlPolicy) {
+		mFlowControlPolicy = flowControlPolicy;
 	}
 
-	public static void main(String[] args) throws IOException {
-		// display local device address and name
-		LocalDevice localDevice = LocalDevice.getLocalDevice();
-		System.out.println("Address: " + localDevice.getBluetoothAddress());
-		System.out.println("Name: " + localDevice.getFriendlyName());
+	public FlowControlPolicy getFlowControlPolicy() {
+		return mFlowControlPolicy;
+	}
+
+	/**
+	 * Sets when sessions ping their peers and when they give up on them. Affects sessions
+	 * started afterwards.
+	 */
+	public void setTimeoutPolicy(TimeoutPolicy timeoutPolicy) {
+		mTimeoutPolicy = timeoutPolicy;
+	}
+
+	public TimeoutPolicy getTimeoutPolicy() {
+		return mTimeoutPolicy;
+	}
+
+	public ServerMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	RemoteNameCache getRemoteNames() {
+		return mRemoteNames;
+	}
 
-		BluetoothServer sampleSPPServer = new BluetoothServer();
-		while (true) {
-			sampleSPPServer.startServer();
+	ScheduledExecutorService getTimer() {
+		return mTimer;
+	}
+
+	/**
+	 * @return A watchdog that enforces the server's {@link TimeoutPolicy} on a session once
+	 * started.
+	 */
+	SessionWatchdog newWatchdog(SessionWatchdog.Session session) {
+		return new SessionWatchdog(mWheel, mTimeoutPolicy, session);
+	}
+
+	/**
+	 * Registers the handler for one message type, replacing any previous handler. Requests of
+	 * type {@link Frame#TYPE_REQUEST} are answered with a fixed greeting unless another handler
+	 * is registered for them.
+	 * @param type The {@link Frame} type to handle.
+	 * @param handler The handler, or {@code null} to stop handling the type.
+	 */
+	public void register(int type, RequestHandler handler) {
+		mHandlers.register(type, handler);
+	}
+
+	/**
+	 * Routes one request frame to its handler. Called concurrently from every session,
+	 * whichever transport or engine it arrived on.
+	 * @param request The frame received from a client.
+	 * @param responder Where the response goes; may be called later from another thread.
+	 */
+	void dispatch(Frame request, final RequestHandler.Responder responder) {
+		final long start = System.nanoTime();
+		final boolean counted = request.getType() == Frame.TYPE_REQUEST;
+		// Counted before checking, so that drain() cannot miss a request that got past the check
+		if (counted) {
+			mInFlight.incrementAndGet();
 		}
+		if (mDraining && (counted || request.getType() == Frame.TYPE_STREAM_OPEN)) {
+			if (counted) {
+				answered();
+			}
+			mMetrics.error("RefusedWhileDraining");
+			responder.respond(request.reply(Frame.TYPE_ERROR, "Server is shutting down"));
+			return;
+		}
+		mHandlers.dispatch(request, new RequestHandler.Responder() {
+			/** Stream handlers may respond many times; only the first response is timed. */
+			private boolean mTimed;
+
+			@Override
+			public void respond(Frame response) {
+				if (!mTimed) {
+					mTimed = true;
+					mMetrics.getRequestLatency().recordSince(start);
+					if (counted) {
+						answered();
+					}
+				}
+				if (response.getType() == Frame.TYPE_ERROR) {
+					mMetrics.error("ErrorResponse");
+				}
+				responder.respond(response);
+			}
 
+			@Override
+			public long getSessionId() {
+				return responder.getSessionId();
+			}
+		});
+	}
+
+	private void answered() {
+		if (mInFlight.decrementAndGet() == 0 && mDraining) {
+			synchronized (mInFlightLock) {
+				mInFlightLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return A new ID for {@link RequestHandler.Responder#getSessionId()}.
+	 */
+	long nextSessionId() {
+		return mSessionIds.incrementAndGet();
+	}
+
+	/**
+	 * Records a blocking session as running, so that {@link #stop()} can close it.
+	 * @return {@code false} if the server has already stopped, in which case the session must
+	 * close its connection instead of serving it.
+	 */
+	boolean addSession(ClientSession session) {
+		synchronized (mSessions) {
+			return !mStopped && mSessions.add(session);
+		}
+	}
+
+	void removeSession(ClientSession session) {
+		synchronized (mSessions) {
+			mSessions.remove(session);
+		}
+	}
+
+	/**
+	 * Makes an event-driven engine part of this server's lifecycle: {@link #drain} stops it
+	 * accepting, and {@link #stop()} closes it.
+	 */
+	void attach(NioServer engine) {
+		mEngines.add(engine);
+	}
+
+	/**
+	 * Starts accepting clients from this server's {@link Transport} on a thread of its own (see
+	 * {@link #serve()}). The transport, and for RFCOMM the SDP record advertising the service,
+	 * stays open until the server is drained or stopped. Does nothing for a server without a
+	 * transport, which only serves its {@link NioServer NioServers}.
+	 * @throws IllegalStateException if the server has already been started or stopped.
+	 */
+	public synchronized void start() {
+		synchronized (mSessions) {
+			if (mAcceptThread != null || mStopped) {
+				throw new IllegalStateException("Server already started");
+			}
+		}
+		if (mTransport == null) {
+			return;
+		}
+		mAcceptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					serve();
+				} catch (IOException e) {
+					if (!mDraining) {
+						ServerLog.always("Accepting clients failed: " + e);
+					}
+				}
+			}
+		}, "accept");
+		mAcceptThread.start();
+	}
+
+	/**
+	 * Shuts the server down gracefully. It stops accepting clients (withdrawing the SDP
+	 * record), refuses new requests and file transfers with a {@link Frame#TYPE_ERROR}, and waits
+	 * for the requests already in flight to be answered, then {@link #stop() stops}.
+	 * @param timeoutMillis How long to wait for requests in flight before stopping regardless.
+	 * @return {@code true} if every request in flight was answered in time.
+	 * @throws InterruptedException if interrupted while waiting; the server is stopped anyway.
+	 */
+	public boolean drain(long timeoutMillis) throws InterruptedException {
+		mDraining = true;
+		try {
+			closeTransport();
+			for (NioServer engine : mEngines) {
+				engine.stopAccepting();
+			}
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			synchronized (mInFlightLock) {
+				long remaining;
+				while (mInFlight.get() > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+					TimeUnit.NANOSECONDS.timedWait(mInFlightLock, remaining);
+				}
+			}
+			int abandoned = mInFlight.get();
+			if (abandoned > 0) {
+				ServerLog.always("Stopping with " + abandoned + " requests still in flight");
+			}
+			return abandoned == 0;
+		} finally {
+			stop();
+		}
+	}
+
+	/**
+	 * Stops the server at once: stops accepting, writes out responses already batched, and closes
+	 * every session, whether or not its requests have been answered. Safe to call more than once.
+	 */
+	public void stop() {
+		List<ClientSession> sessions;
+		synchronized (mSessions) {
+			if (mStopped) {
+				return;
+			}
+			mStopped = true;
+			sessions = new ArrayList<ClientSession>(mSessions);
+		}
+		closeTransport();
+		for (NioServer engine : mEngines) {
+			try {
+				engine.close();
+			} catch (IOException e) {
+				mMetrics.error(e);
+			}
+		}
+		for (ClientSession session : sessions) {
+			session.shutdown();
+		}
+		mWorkers.shutdown();
+		mTimer.shutdown();
+		mWheel.stop();
+	}
+
+	/**
+	 * Blocks until the server has stopped accepting clients and its event-driven engines have
+	 * shut down.
+	 */
+	public void join() throws InterruptedException {
+		Thread acceptThread;
+		synchronized (this) {
+			acceptThread = mAcceptThread;
+		}
+		if (acceptThread != null) {
+			acceptThread.join();
+		}
+		for (NioServer engine : mEngines) {
+			engine.join();
+		}
+	}
+
+	private void closeTransport() {
+		if (mTransport == null) {
+			return;
+		}
+		try {
+			mTransport.close();
+		} catch (IOException e) {
+			mMetrics.error(e);
+		}
+	}
+
+	/**
+	 * Accepts clients from this server's {@link Transport} until it fails or is closed,
+	 * serving each one on a worker thread. Unless the server is being drained, it is then
+	 * stopped.
+	 * @throws IOException if accepting a client fails.
+	 */
+	public void serve() throws IOException {
+		ServerLog.always("\nServer Started on " + mTransport.getDescription()
+				+ ". Serving up to " + mMaxSessions + " clients at once ("
+				+ (SessionThreadFactory.VIRTUAL_THREADS ? "virtual" : "platform") + " threads)");
+
+		try {
+			while (true) {
+				mSessionPermits.acquireUninterruptibly();
+				Connection connection;
+				try {
+					connection = mTransport.accept();
+				} catch (IOException e) {
+					mSessionPermits.release();
+					throw e;
+				}
+				mMetrics.connectionAccepted();
+				mWorkers.execute(new ClientSession(this, connection, mSessionPermits));
+			}
+		} finally {
+			// A drain stops the server itself once requests in flight are answered
+			if (!mDraining) {
+				stop();
+			}
+		}
+	}
+
+	/**
+	 * Usage: {@code BluetoothServer [rfcomm | tcp:[<host>:]<port>] [nio:[<host>:]<port>]
+	 * [flush:<bytes>,<micros>] [flow:<window>[,<queue>[,block|drop-oldest|fail-fast]]]
+	 * [timeouts:<readMs>[,<writeMs>[,<idleMs>]]] [drain:<ms>] [metrics:<seconds>] [files:<dir>] [log:off] [maxSessions]}. The blocking
+	 * endpoint defaults to RFCOMM unless only {@code nio:...} is given; the event-driven TCP
+	 * engine runs beside it. TCP endpoints listen on every interface unless a host is given
+	 * (e.g., {@code tcp:127.0.0.1:5555} for loopback-only load testing).
+	 * Metrics are always published over JMX, and printed every {@code <seconds>} if requested.
+	 * With {@code files:<dir>}, clients may upload files to and download files from {@code <dir>}.
+	 * When the JVM is asked to exit (e.g., by SIGTERM), the server is drained, waiting up to
+	 * {@code <ms>} ({@link #DEFAULT_DRAIN_MS} by default) for requests in flight.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String endpoint = null;
+		InetSocketAddress nioAddress = null;
+		int maxSessions = DEFAULT_MAX_SESSIONS;
+		FlushPolicy flushPolicy = FlushPolicy.DEFAULT;
+		FlowControlPolicy flowControlPolicy = FlowControlPolicy.DEFAULT;
+		TimeoutPolicy timeoutPolicy = TimeoutPolicy.DEFAULT;
+		long metricsPeriod = 0;
+		long drainMillis = DEFAULT_DRAIN_MS;
+		File fileRoot = null;
+		for (String arg : args) {
+			if (arg.equals("log:off")) {
+				ServerLog.setEnabled(false);
+			} else if (arg.startsWith("metrics:")) {
+				metricsPeriod = Long.parseLong(arg.substring("metrics:".length()));
+			} else if (arg.startsWith("files:")) {
+				fileRoot = new File(arg.substring("files:".length()));
+			} else if (arg.startsWith("flush:")) {
+				flushPolicy = FlushPolicy.parse(arg.substring("flush:".length()));
+			} else if (arg.startsWith("flow:")) {
+				flowControlPolicy = FlowControlPolicy.parse(arg.substring("flow:".length()));
+			} else if (arg.startsWith("drain:")) {
+				drainMillis = Long.parseLong(arg.substring("drain:".length()));
+			} else if (arg.startsWith("timeouts:")) {
+				timeoutPolicy = TimeoutPolicy.parse(arg.substring("timeouts:".length()));
+			} else if (arg.startsWith("nio:")) {
+				nioAddress = parseAddress(arg.substring("nio:".length()));
+			} else if (arg.equals("rfcomm") || arg.startsWith("tcp:")) {
+				endpoint = arg;
+			} else {
+				maxSessions = Integer.parseInt(arg);
+			}
+		}
+		if (endpoint == null && nioAddress == null) {
+			endpoint = "rfcomm";
+		}
+
+		Transport transport = null;
+		if (endpoint == null) {
+			// NIO only
+		} else if (endpoint.startsWith("tcp:")) {
+			transport = new TcpTransport(parseAddress(endpoint.substring("tcp:".length())));
+		} else {
+			// display local device address and name
+			LocalDevice localDevice = LocalDevice.getLocalDevice();
+			ServerLog.always("Address: " + localDevice.getBluetoothAddress());
+			ServerLog.always("Name: " + localDevice.getFriendlyName());
+			transport = new RfcommTransport(SERVICE_NAME);
+		}
+
+		final BluetoothServer sampleSPPServer = new BluetoothServer(transport, maxSessions);
+		sampleSPPServer.setFlushPolicy(flushPolicy);
+		sampleSPPServer.setFlowControlPolicy(flowControlPolicy);
+		sampleSPPServer.setTimeoutPolicy(timeoutPolicy);
+		sampleSPPServer.getMetrics().registerMBean();
+		if (metricsPeriod > 0) {
+			sampleSPPServer.getMetrics().scheduleDump(sampleSPPServer.getTimer(), metricsPeriod);
+		}
+		if (fileRoot != null) {
+			new FileTransferHandler(fileRoot, sampleSPPServer.getTimer()).registerWith(sampleSPPServer);
+		}
+		NioServer nioServer = null;
+		if (nioAddress != null) {
+			nioServer = new NioServer(sampleSPPServer, nioAddress, Runtime.getRuntime().availableProcessors());
+			nioServer.start();
+			ServerLog.always("\nServer Started on " + nioServer.getDescription());
+		}
+		final long drainTimeout = drainMillis;
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ServerLog.always("Shutting down, waiting up to " + drainTimeout + " ms for requests in flight");
+				try {
+					sampleSPPServer.drain(drainTimeout);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "shutdown"));
+		sampleSPPServer.start();
+		sampleSPPServer.join();
+	}
+
+	/**
+	 * Parses {@code [<host>:]<port>}.
+	 */
+	private static InetSocketAddress parseAddress(String spec) {
+		int colon = spec.lastIndexOf(':');
+		if (colon < 0) {
+			return new InetSocketAddress(Integer.parseInt(spec));
+		}
+		return new InetSocketAddress(spec.substring(0, colon), Integer.parseInt(spec.substring(colon + 1)));
 	}
-}
\ No newline at end of file
+}
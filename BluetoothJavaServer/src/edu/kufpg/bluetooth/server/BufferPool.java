@@ -0,0 +1,193 @@
+package edu.kufpg.bluetooth.server;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A process-wide pool of byte arrays for the transport and codec layers: read buffers, response
+ * batches, encoded frames, and compression scratch space. Arrays come in power-of-two size
+ * classes from {@value #MIN_SIZE} bytes to {@value #MAX_SIZE} bytes; each class keeps up to
+ * about {@value #CLASS_BYTES} bytes of idle arrays. Larger requests are simply allocated, and are
+ * left to the garbage collector when released.
+ * <p>
+ * Every array from {@link #acquire(int)} must be handed back to {@link #release(byte[])} exactly
+ * once, and not used afterwards. With leak detection on (set the system property
+ * {@value #DEBUG_PROPERTY}, or call {@link #setLeakDetection(boolean)} before the server
+ * starts), releasing an array twice fails immediately, and an array that is garbage collected
+ * without being released is logged along with where it was acquired. Leak detection costs a stack
+ * trace per acquire, so it is meant for testing only.
+ */
+public final class BufferPool {
+	public static final int MIN_SIZE = 256;
+	public static final int MAX_SIZE = 64 * 1024;
+
+	/** Roughly how many bytes of idle arrays each size class may hold on to. */
+	public static final int CLASS_BYTES = 1024 * 1024;
+
+	public static final String DEBUG_PROPERTY = "edu.kufpg.bluetooth.server.BufferPool.debug";
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+	private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+	private static final Queue<byte[]>[] sIdle = newQueues();
+	private static final AtomicInteger[] sIdleCounts = new AtomicInteger[CLASSES];
+	static {
+		for (int i = 0; i < CLASSES; i++) {
+			sIdleCounts[i] = new AtomicInteger();
+		}
+	}
+
+	private static volatile boolean sLeakDetection = Boolean.getBoolean(DEBUG_PROPERTY);
+
+	/** Arrays handed out while leak detection is on; guarded by itself. */
+	private static final Map<byte[], Allocation> sOutstanding = new WeakHashMap<byte[], Allocation>();
+	private static final ReferenceQueue<byte[]> sCollected = new ReferenceQueue<byte[]>();
+
+	private BufferPool() {}
+
+	public static boolean isLeakDetectionEnabled() {
+		return sLeakDetection;
+	}
+
+	public static void setLeakDetection(boolean enabled) {
+		sLeakDetection = enabled;
+	}
+
+	/**
+	 * @return An array of at least {@code minSize} bytes. Its contents are undefined.
+	 */
+	public static byte[] acquire(int minSize) {
+		byte[] buffer = null;
+		int sizeClass = sizeClass(minSize);
+		if (sizeClass >= 0) {
+			buffer = sIdle[sizeClass].poll();
+			if (buffer != null) {
+				sIdleCounts[sizeClass].decrementAndGet();
+			} else {
+				buffer = new byte[MIN_SIZE << sizeClass];
+			}
+		} else {
+			buffer = new byte[minSize];
+		}
+		if (sLeakDetection) {
+			track(buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Returns an array from {@link #acquire(int)} to the pool. {@code null} is ignored.
+	 * @throws IllegalStateException if leak detection is on and the array was already released.
+	 */
+	public static void release(byte[] buffer) {
+		if (buffer == null) {
+			return;
+		}
+		if (sLeakDetection) {
+			untrack(buffer);
+		}
+		int sizeClass = sizeClass(buffer.length);
+		if (sizeClass < 0 || buffer.length != MIN_SIZE << sizeClass) {
+			return;
+		}
+		if (sIdleCounts[sizeClass].incrementAndGet() * buffer.length <= CLASS_BYTES) {
+			sIdle[sizeClass].add(buffer);
+		} else {
+			sIdleCounts[sizeClass].decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return The total size of the idle arrays held by the pool.
+	 */
+	public static long getIdleBytes() {
+		long total = 0;
+		for (int i = 0; i < CLASSES; i++) {
+			total += (long) sIdleCounts[i].get() * (MIN_SIZE << i);
+		}
+		return total;
+	}
+
+	/**
+	 * @return How many tracked arrays have been acquired and not yet released or collected. Only
+	 * counts arrays acquired while leak detection was on.
+	 */
+	public static int getOutstanding() {
+		synchronized (sOutstanding) {
+			return sOutstanding.size();
+		}
+	}
+
+	/**
+	 * @return The index of the smallest class holding {@code size} bytes, or -1 if it is too big.
+	 */
+	private static int sizeClass(int size) {
+		if (size > MAX_SIZE) {
+			return -1;
+		}
+		if (size <= MIN_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	private static void track(byte[] buffer) {
+		reportLeaks();
+		synchronized (sOutstanding) {
+			sOutstanding.put(buffer, new Allocation(buffer));
+		}
+	}
+
+	private static void untrack(byte[] buffer) {
+		Allocation allocation;
+		synchronized (sOutstanding) {
+			allocation = sOutstanding.remove(buffer);
+		}
+		if (allocation == null) {
+			throw new IllegalStateException("Buffer of " + buffer.length + " bytes released twice, or not acquired from the pool");
+		}
+		allocation.clear();
+	}
+
+	/**
+	 * Logs every tracked array that was collected without being released.
+	 */
+	private static void reportLeaks() {
+		Allocation leaked;
+		while ((leaked = (Allocation) sCollected.poll()) != null) {
+			StringBuilder message = new StringBuilder("LEAK: a pooled buffer was never released. ");
+			message.append(leaked.mAcquiredAt);
+			for (StackTraceElement frame : leaked.mAcquiredAt.getStackTrace()) {
+				message.append("\n\tat ").append(frame);
+			}
+			ServerLog.always(message.toString());
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Queue<byte[]>[] newQueues() {
+		Queue<byte[]>[] queues = new Queue[CLASSES];
+		for (int i = 0; i < CLASSES; i++) {
+			queues[i] = new ConcurrentLinkedQueue<byte[]>();
+		}
+		return queues;
+	}
+
+	/**
+	 * Remembers where a tracked array was acquired. It is enqueued if the array is collected
+	 * before {@link #untrack} clears it.
+	 */
+	private static class Allocation extends WeakReference<byte[]> {
+		final Throwable mAcquiredAt;
+
+		Allocation(byte[] buffer) {
+			super(buffer, sCollected);
+			mAcquiredAt = new Throwable("Buffer of " + buffer.length + " bytes acquired");
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Serves a single accepted client connection on a worker thread for as long as the client keeps
+ * it open. When the client hangs up, the connection is closed and the session's permit is handed
+ * back to the accept loop. Clients that grant credit get responses only as fast as they grant it
+ * (see {@link FlowControl}). A client that goes silent, stops reading or idles is given up on as
+ * the server's {@link TimeoutPolicy} dictates.
+ */
+class ClientSession implements Runnable, SessionWatchdog.Session {
+	private final BluetoothServer mServer;
+	private final Connection mConnection;
+	private final Semaphore mPermits;
+	private final ServerMetrics mMetrics;
+	private volatile ResponseBatcher mBatcher;
+	/** Why the watchdog closed the connection, if it did. */
+	private volatile IOException mTimedOut;
+	/** Whether the server closed the connection because it is stopping. */
+	private volatile boolean mShutDown;
+
+	ClientSession(BluetoothServer server, Connection connection, Semaphore permits) {
+		mServer = server;
+		mMetrics = server.getMetrics();
+		mConnection = connection;
+		mPermits = permits;
+	}
+
+	@Override
+	public void run() {
+		if (!mServer.addSession(this)) {
+			// Accepted just before the server stopped
+			closeQuietly();
+			mPermits.release();
+			return;
+		}
+		mMetrics.sessionStarted();
+		try {
+			serve();
+		} catch (IOException e) {
+			// Closing the connection under a blocked read surfaces as some other exception
+			if (mTimedOut != null) {
+				e = mTimedOut;
+			}
+			if (mShutDown) {
+				if (ServerLog.isEnabled()) {
+					ServerLog.log("Closed session with " + mConnection.getRemoteAddress() + " on shutdown");
+				}
+			} else {
+				mMetrics.error(e);
+				if (ServerLog.isEnabled()) {
+					ServerLog.log("Session with " + mConnection.getRemoteAddress() + " failed: " + e);
+				}
+			}
+		} finally {
+			closeQuietly();
+			mServer.removeSession(this);
+			mMetrics.sessionEnded();
+			mPermits.release();
+		}
+	}
+
+	/**
+	 * Writes out any batched responses and closes the connection, ending the session. Called
+	 * when the server stops. A write to a peer that has stopped reading is cut short by the
+	 * write timeout.
+	 */
+	void shutdown() {
+		mShutDown = true;
+		ResponseBatcher batcher = mBatcher;
+		if (batcher != null) {
+			try {
+				batcher.flush();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+		closeQuietly();
+	}
+
+	private void closeQuietly() {
+		try {
+			mConnection.close();
+		} catch (IOException e) {
+			mMetrics.error(e);
+		}
+	}
+
+	@Override
+	public void ping() {
+		// Writing may block, so it is left to the thread that runs delayed flushes
+		try {
+			mServer.getTimer().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						mBatcher.add(new Frame(Frame.TYPE_PING, 0, 0, null));
+						mBatcher.batchComplete();
+					} catch (IOException e) {
+						// The read timeout will catch a dead link
+						mMetrics.error(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+		}
+	}
+
+	@Override
+	public void timedOut(IOException reason) {
+		mTimedOut = reason;
+		closeQuietly();
+	}
+
+	private void serve() throws IOException {
+		// Start reading right away; the name is only needed for logging
+		String remoteName = mServer.getRemoteNames().lookup(mConnection);
+		if (ServerLog.isEnabled()) {
+			ServerLog.log("Remote device " + mConnection.getRemoteAddress()
+					+ (remoteName == null ? "" : " (" + remoteName + ")") + " connected");
+		}
+
+		InputStream inStream = mConnection.getInputStream();
+		OutputStream outStream = mConnection.getOutputStream();
+		FrameDecoder decoder = new FrameDecoder();
+		SessionWatchdog watchdog = mServer.newWatchdog(this);
+		final ResponseBatcher batcher = new ResponseBatcher(outStream, mServer.getFlushPolicy(), mServer.getTimer(), mMetrics, watchdog);
+		mBatcher = batcher;
+		final Thread readerThread = Thread.currentThread();
+		final long sessionId = mServer.nextSessionId();
+		final Compression compression = new Compression();
+		final FlowControl flow = new FlowControl(mServer.getFlowControlPolicy(), new FlowControl.Sink() {
+			@Override
+			public void write(Frame frame) throws IOException {
+				batcher.add(frame);
+				// Frames written on the read loop go out with the rest of their batch; ones
+				// written elsewhere are flushed on their own.
+				if (Thread.currentThread() != readerThread) {
+					batcher.batchComplete();
+				}
+			}
+
+			@Override
+			public void dropped(Frame frame) {
+				mMetrics.error("ResponseDropped");
+			}
+		});
+		RequestHandler.Responder responder = new RequestHandler.Responder() {
+			@Override
+			public void respond(Frame response) {
+				try {
+					Frame out = compression.outbound(response);
+					if (FlowControl.isCredited(out)) {
+						flow.consumed();
+					}
+					// The read loop must not wait for credit, since it is what would bring it in
+					flow.send(out, Thread.currentThread() != readerThread);
+				} catch (IOException e) {
+					mMetrics.error(e);
+					if (ServerLog.isEnabled()) {
+						ServerLog.log("Dropping response to " + mConnection.getRemoteAddress() + ": " + e);
+					}
+					closeQuietly();
+				}
+			}
+
+			@Override
+			public long getSessionId() {
+				return sessionId;
+			}
+		};
+		byte[] scratch = BufferPool.acquire(4096);
+		watchdog.start();
+		try {
+			// A client keeps its connection open and may pipeline any number of request frames.
+			// Every response carries the ID of the request it answers. All of the requests that
+			// arrive in one read are answered with one batched write.
+			int n;
+			while ((n = inStream.read(scratch)) >= 0) {
+				mMetrics.bytesIn(n);
+				decoder.feed(scratch, 0, n);
+				Frame request;
+				while ((request = decoder.poll()) != null) {
+					watchdog.received(request);
+					if (request.getType() == Frame.TYPE_HELLO) {
+						responder.respond(compression.negotiate(request));
+						logCodec(compression);
+					} else if (request.getType() == Frame.TYPE_CREDIT) {
+						flow.onCredit(request);
+					} else if (request.getType() == Frame.TYPE_PONG) {
+						// Answers a heartbeat; the watchdog has seen it
+					} else {
+						mServer.dispatch(compression.inbound(request), responder);
+					}
+				}
+				batcher.batchComplete();
+			}
+			if (mTimedOut != null) {
+				throw mTimedOut;
+			}
+			batcher.flush();
+			if (decoder.hasPartialFrame()) {
+				throw new ProtocolException("Stream ended in the middle of a frame");
+			}
+		} finally {
+			watchdog.stop();
+			BufferPool.release(scratch);
+			decoder.release();
+			flow.close();
+			batcher.close();
+		}
+
+		outStream.close();
+		inStream.close();
+	}
+
+	private void logCodec(Compression compression) {
+		if (ServerLog.isEnabled()) {
+			ServerLog.log("Remote device " + mConnection.getRemoteAddress() + " negotiated "
+					+ (compression.getCodec() == null ? "no compression" : compression.getCodec() + " compression"));
+		}
+	}
+}
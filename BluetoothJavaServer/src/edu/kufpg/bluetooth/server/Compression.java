@@ -0,0 +1,113 @@
+package edu.kufpg.bluetooth.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The compression settings of one connection. A client that wants compression sends a
+ * {@link Frame#TYPE_HELLO} frame first, listing the codecs it supports in order of preference
+ * and the smallest payload worth compressing:
+ *
+ * <pre>
+ * HELLO request  threshold (4 bytes), codec IDs (1 byte each)
+ * HELLO reply    threshold (4 bytes), chosen codec ID (1 byte), {@link CompressionCodec#ID_NONE} if none
+ * </pre>
+ *
+ * The client does not wait for the reply: until it arrives, both sides simply send payloads as
+ * they are. Afterwards, payloads of at least the threshold length are sent compressed if that
+ * makes them smaller, with {@link Frame#FLAG_COMPRESSED} set and the payload replaced by the
+ * original length (4 bytes) followed by the codec's output. Peers that do not know HELLO answer
+ * it with an error or not at all, and the connection stays uncompressed.
+ */
+final class Compression {
+	/** Payloads shorter than this are never compressed, whatever the client asks for. */
+	static final int MIN_THRESHOLD = 32;
+
+	private static final int[] SUPPORTED = { CompressionCodec.ID_LZ4, CompressionCodec.ID_DEFLATE };
+
+	private volatile CompressionCodec mCodec;
+	private volatile int mThreshold = Integer.MAX_VALUE;
+
+	CompressionCodec getCodec() {
+		return mCodec;
+	}
+
+	/**
+	 * Picks the first codec in the client's HELLO that this side supports.
+	 * @return The HELLO reply.
+	 */
+	Frame negotiate(Frame hello) throws ProtocolException {
+		byte[] payload = hello.getPayload();
+		if (payload.length < 4) {
+			throw new ProtocolException("HELLO too short");
+		}
+		int threshold = Math.max(MIN_THRESHOLD, Frame.getInt(payload, 0));
+		CompressionCodec chosen = null;
+		for (int i = 4; i < payload.length && chosen == null; i++) {
+			for (int id : SUPPORTED) {
+				if (payload[i] == id) {
+					chosen = CompressionCodec.forId(id);
+				}
+			}
+		}
+		mThreshold = threshold;
+		mCodec = chosen;
+		byte[] reply = ByteBuffer.allocate(5).putInt(threshold)
+				.put((byte) (chosen == null ? CompressionCodec.ID_NONE : chosen.getId())).array();
+		return hello.reply(Frame.TYPE_HELLO, reply);
+	}
+
+	/**
+	 * @return The frame with its payload decompressed, or the frame itself if it was not
+	 * compressed.
+	 * @throws ProtocolException if the payload is compressed but no codec was negotiated, or
+	 * it does not decompress.
+	 */
+	Frame inbound(Frame frame) throws ProtocolException {
+		if (!frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+			return frame;
+		}
+		CompressionCodec codec = mCodec;
+		byte[] payload = frame.getPayload();
+		if (codec == null) {
+			throw new ProtocolException("Compressed frame before a codec was negotiated");
+		}
+		if (payload.length < 4) {
+			throw new ProtocolException("Compressed payload too short");
+		}
+		int originalLength = Frame.getInt(payload, 0);
+		if (originalLength < 0 || originalLength > Frame.MAX_PAYLOAD_LENGTH) {
+			throw new ProtocolException("Bad decompressed length " + originalLength);
+		}
+		byte[] original = new byte[originalLength];
+		codec.decompress(payload, 4, payload.length - 4, original, 0, originalLength);
+		return new Frame(frame.getType(), frame.getFlags() & ~Frame.FLAG_COMPRESSED, frame.getRequestId(), original);
+	}
+
+	/**
+	 * @return The frame with its payload compressed, or the frame itself if compression is off,
+	 * the payload is below the threshold, or compressing would not make it smaller.
+	 */
+	Frame outbound(Frame frame) {
+		CompressionCodec codec = mCodec;
+		byte[] payload = frame.getPayload();
+		if (codec == null || payload.length < mThreshold || frame.getType() == Frame.TYPE_HELLO
+				|| frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+			return frame;
+		}
+		// Only worth it if the result, length prefix included, is smaller than the original
+		byte[] compressed = BufferPool.acquire(payload.length);
+		byte[] exact;
+		try {
+			int n = codec.compress(payload, 0, payload.length, compressed, 4, payload.length - 5);
+			if (n < 0) {
+				return frame;
+			}
+			Frame.putInt(compressed, 0, payload.length);
+			exact = new byte[4 + n];
+			System.arraycopy(compressed, 0, exact, 0, exact.length);
+		} finally {
+			BufferPool.release(compressed);
+		}
+		return new Frame(frame.getType(), frame.getFlags() | Frame.FLAG_COMPRESSED, frame.getRequestId(), exact);
+	}
+}
@@ -0,0 +1,61 @@
+package edu.kufpg.bluetooth.server;
+
+/**
+ * A payload compression algorithm that a client and server can agree on in their
+ * {@link Frame#TYPE_HELLO} exchange. Codecs are stateless from the caller's point of view and
+ * safe to share between sessions; the compressor state they need is pooled internally, so
+ * compressing a payload does not allocate a new compressor.
+ */
+public abstract class CompressionCodec {
+	public static final int ID_NONE = 0;
+	public static final int ID_DEFLATE = 1;
+	public static final int ID_LZ4 = 2;
+
+	/** Fast DEFLATE (RFC 1951, no zlib header), best for text. */
+	public static final CompressionCodec DEFLATE = new DeflateCodec();
+
+	/** The LZ4 block format: less compression than DEFLATE for a fraction of the CPU. */
+	public static final CompressionCodec LZ4 = new Lz4Codec();
+
+	/**
+	 * @return The codec with the given ID, or {@code null} if it is {@link #ID_NONE} or unknown.
+	 */
+	public static CompressionCodec forId(int id) {
+		switch (id) {
+		case ID_DEFLATE:
+			return DEFLATE;
+		case ID_LZ4:
+			return LZ4;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return The ID sent in {@link Frame#TYPE_HELLO} frames.
+	 */
+	public abstract int getId();
+
+	public abstract String getName();
+
+	/**
+	 * Compresses {@code len} bytes of {@code src} into {@code dst}.
+	 * @return The compressed length, or -1 if the result would not fit in {@code dstLen} bytes
+	 * (in which case the payload is better sent as it is).
+	 */
+	public abstract int compress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstLen);
+
+	/**
+	 * Decompresses {@code len} bytes of {@code src} into exactly {@code originalLength} bytes
+	 * of {@code dst}.
+	 * @throws ProtocolException if the input is corrupt or does not decompress to
+	 * {@code originalLength} bytes.
+	 */
+	public abstract void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int originalLength)
+			throws ProtocolException;
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
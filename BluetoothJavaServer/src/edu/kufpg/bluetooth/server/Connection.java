@@ -0,0 +1,30 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One accepted client, as handed out by a {@link Transport}. The input and output streams may
+ * be used from different threads at the same time.
+ */
+public interface Connection extends Closeable {
+	InputStream getInputStream() throws IOException;
+
+	OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * @return An address identifying the remote peer (a Bluetooth address, a socket address,
+	 * or a pipe number). Never blocks.
+	 */
+	String getRemoteAddress();
+
+	/**
+	 * Looks up the peer's human-readable name. For RFCOMM this is a remote name request over
+	 * the air, so it can take a long time.
+	 * @return The peer's name, or {@link #getRemoteAddress()} if the transport has no names.
+	 * @throws IOException if the lookup fails.
+	 */
+	String getRemoteName() throws IOException;
+}
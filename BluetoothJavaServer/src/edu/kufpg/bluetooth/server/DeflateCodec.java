@@ -0,0 +1,84 @@
+package edu.kufpg.bluetooth.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw DEFLATE at its fastest level. {@link Deflater} and {@link Inflater} hold native memory
+ * and are expensive to create, so idle ones are kept in pools and reset between uses.
+ */
+class DeflateCodec extends CompressionCodec {
+	/** Idle instances beyond this many are released rather than pooled. */
+	private static final int POOL_SIZE = 16;
+
+	private final Queue<Deflater> mDeflaters = new ConcurrentLinkedQueue<Deflater>();
+	private final Queue<Inflater> mInflaters = new ConcurrentLinkedQueue<Inflater>();
+
+	@Override
+	public int getId() {
+		return ID_DEFLATE;
+	}
+
+	@Override
+	public String getName() {
+		return "deflate";
+	}
+
+	@Override
+	public int compress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstLen) {
+		Deflater deflater = mDeflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.BEST_SPEED, true);
+		}
+		try {
+			deflater.setInput(src, off, len);
+			deflater.finish();
+			int n = deflater.deflate(dst, dstOff, dstLen);
+			return deflater.finished() ? n : -1;
+		} finally {
+			deflater.reset();
+			release(mDeflaters, deflater);
+		}
+	}
+
+	@Override
+	public void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int originalLength)
+			throws ProtocolException {
+		Inflater inflater = mInflaters.poll();
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		try {
+			inflater.setInput(src, off, len);
+			int n = 0;
+			while (n < originalLength && !inflater.finished()) {
+				int inflated = inflater.inflate(dst, dstOff + n, originalLength - n);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				n += inflated;
+			}
+			if (n != originalLength) {
+				throw new ProtocolException("Compressed payload inflated to " + n + " bytes, expected " + originalLength);
+			}
+		} catch (DataFormatException e) {
+			throw new ProtocolException("Corrupt compressed payload: " + e.getMessage());
+		} finally {
+			inflater.reset();
+			release(mInflaters, inflater);
+		}
+	}
+
+	private static <T> void release(Queue<T> pool, T instance) {
+		if (pool.size() < POOL_SIZE) {
+			pool.add(instance);
+		} else if (instance instanceof Deflater) {
+			((Deflater) instance).end();
+		} else {
+			((Inflater) instance).end();
+		}
+	}
+}
@@ -0,0 +1,370 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves file uploads and downloads out of one directory, using the stream frames described in
+ * {@link StreamCodec}. Register it for all four stream types with {@link #registerWith}.
+ * <p>
+ * Neither direction ever holds a whole file in memory. Uploaded chunks are written straight to
+ * their offset in the file, and downloads are sent out of a read-only memory mapping of the file,
+ * a region at a time. That spares a read call per chunk, not a copy: each chunk is still copied
+ * out of the mapping into its frame's payload, and again when the frame is encoded for the
+ * socket. A region is only unmapped once it has been garbage collected, so a download drops its
+ * mapping as soon as it closes. How much is in flight is bounded by the receiver's window: a
+ * download stops at the window the client last granted and resumes when its ACK arrives, and an
+ * upload is acknowledged every half window.
+ * <p>
+ * A session's frames are dispatched one at a time, so each stream is only touched by one thread
+ * at once. Streams that see no frames for {@link #IDLE_TIMEOUT_MS} (e.g., because the client
+ * went away) are closed by a periodic sweep.
+ */
+public class FileTransferHandler implements RequestHandler {
+	/** The most file data sent in one DATA frame. */
+	public static final int CHUNK_SIZE = 16 * 1024;
+
+	/** How many unacknowledged upload bytes a client may send. */
+	public static final int UPLOAD_WINDOW = 256 * 1024;
+
+	/** How long a stream may sit without frames before it is abandoned. */
+	public static final long IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(2);
+
+	/** How much of a download is mapped at once. */
+	private static final long MAP_REGION = 16 * 1024 * 1024;
+
+	private final File mRoot;
+	private final ConcurrentMap<String, Transfer> mTransfers = new ConcurrentHashMap<String, Transfer>();
+
+	/**
+	 * @param root The directory files are uploaded into and downloaded from.
+	 * @param timer Runs the sweep for abandoned streams.
+	 */
+	public FileTransferHandler(File root, ScheduledExecutorService timer) throws IOException {
+		if (!root.isDirectory() && !root.mkdirs()) {
+			throw new IOException("Cannot create " + root);
+		}
+		mRoot = root;
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				closeIdle();
+			}
+		}, IDLE_TIMEOUT_MS, IDLE_TIMEOUT_MS / 4, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Registers this handler for every stream frame type.
+	 */
+	public void registerWith(BluetoothServer server) {
+		server.register(Frame.TYPE_STREAM_OPEN, this);
+		server.register(Frame.TYPE_STREAM_DATA, this);
+		server.register(Frame.TYPE_STREAM_ACK, this);
+		server.register(Frame.TYPE_STREAM_END, this);
+	}
+
+	@Override
+	public void handle(Frame request, Responder responder) throws IOException {
+		String key = responder.getSessionId() + "/" + request.getRequestId();
+		if (request.getType() == Frame.TYPE_STREAM_OPEN) {
+			open(key, request, responder);
+			return;
+		}
+		Transfer transfer = mTransfers.get(key);
+		if (transfer == null) {
+			if (request.getType() == Frame.TYPE_STREAM_ACK) {
+				// Crossed with the END of a finished download
+				return;
+			}
+			throw new ProtocolException("No open stream " + request.getRequestId());
+		}
+		transfer.mLastActive = System.currentTimeMillis();
+		try {
+			switch (request.getType()) {
+			case Frame.TYPE_STREAM_DATA:
+				transfer.data(request, responder);
+				break;
+			case Frame.TYPE_STREAM_ACK:
+				transfer.ack(request, responder);
+				break;
+			case Frame.TYPE_STREAM_END:
+				transfer.end(request, responder);
+				break;
+			default:
+				throw new ProtocolException("Not a stream frame: " + request.getType());
+			}
+		} catch (IOException e) {
+			close(key, transfer);
+			throw e;
+		} catch (RuntimeException e) {
+			close(key, transfer);
+			throw e;
+		}
+	}
+
+	private void open(String key, Frame request, Responder responder) throws IOException {
+		requireLength(request, StreamCodec.OPEN_HEADER_LENGTH);
+		byte[] payload = request.getPayload();
+		File file = resolve(StreamCodec.openName(payload));
+		long offset = StreamCodec.openOffset(payload);
+		Transfer transfer;
+		switch (StreamCodec.openMode(payload)) {
+		case StreamCodec.MODE_PUT:
+			transfer = new Upload(key, file, offset);
+			break;
+		case StreamCodec.MODE_GET:
+			int window = StreamCodec.openWindow(payload);
+			if (offset < 0 || window <= 0) {
+				throw new ProtocolException("Bad download offset " + offset + " or window " + window);
+			}
+			if (!file.isFile()) {
+				throw new FileNotFoundException(file.getName());
+			}
+			transfer = new Download(key, file, offset, window);
+			break;
+		default:
+			throw new ProtocolException("Unknown stream mode " + StreamCodec.openMode(payload));
+		}
+		Transfer previous = mTransfers.put(key, transfer);
+		if (previous != null) {
+			previous.closeQuietly();
+		}
+		try {
+			transfer.start(request, responder);
+		} catch (IOException e) {
+			close(key, transfer);
+			throw e;
+		} catch (RuntimeException e) {
+			close(key, transfer);
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks that a frame's payload holds at least the fixed part of its layout.
+	 */
+	private static void requireLength(Frame frame, int length) throws ProtocolException {
+		if (frame.getPayload().length < length) {
+			throw new ProtocolException("Stream frame of type " + frame.getType() + " has " + frame.getPayload().length
+					+ " payload bytes; needs " + length);
+		}
+	}
+
+	/**
+	 * Only plain names are accepted, so clients cannot reach outside the root directory.
+	 */
+	private File resolve(String name) throws ProtocolException {
+		if (name.length() == 0 || name.equals(".") || name.equals("..")
+				|| name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.indexOf(File.separatorChar) >= 0) {
+			throw new ProtocolException("Invalid file name: " + name);
+		}
+		return new File(mRoot, name);
+	}
+
+	private void close(String key, Transfer transfer) {
+		mTransfers.remove(key, transfer);
+		transfer.closeQuietly();
+	}
+
+	private void closeIdle() {
+		long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT_MS;
+		for (Iterator<Transfer> it = mTransfers.values().iterator(); it.hasNext();) {
+			Transfer transfer = it.next();
+			if (transfer.mLastActive < cutoff) {
+				it.remove();
+				transfer.closeQuietly();
+				if (ServerLog.isEnabled()) {
+					ServerLog.log("Abandoned stream " + transfer.mKey);
+				}
+			}
+		}
+	}
+
+	private abstract class Transfer {
+		final String mKey;
+		final RandomAccessFile mFile;
+		final FileChannel mChannel;
+		volatile long mLastActive = System.currentTimeMillis();
+
+		Transfer(String key, File file, String mode) throws FileNotFoundException {
+			mKey = key;
+			mFile = new RandomAccessFile(file, mode);
+			mChannel = mFile.getChannel();
+		}
+
+		abstract void start(Frame open, Responder responder) throws IOException;
+
+		void data(Frame request, Responder responder) throws IOException {
+			throw new ProtocolException("Unexpected DATA on stream " + request.getRequestId());
+		}
+
+		void ack(Frame request, Responder responder) throws IOException {
+			throw new ProtocolException("Unexpected ACK on stream " + request.getRequestId());
+		}
+
+		void end(Frame request, Responder responder) throws IOException {
+			throw new ProtocolException("Unexpected END on stream " + request.getRequestId());
+		}
+
+		/** Closes the file. Safe to call from the sweep while a frame is being handled. */
+		void closeQuietly() {
+			try {
+				mFile.close();
+			} catch (IOException e) {
+				ServerLog.log("Closing stream " + mKey + " failed: " + e);
+			}
+		}
+	}
+
+	private class Upload extends Transfer {
+		private final long mRequestedOffset;
+		private long mReceived;
+		private long mAcknowledged;
+
+		Upload(String key, File file, long offset) throws FileNotFoundException {
+			super(key, file, "rw");
+			mRequestedOffset = offset;
+		}
+
+		@Override
+		void start(Frame open, Responder responder) throws IOException {
+			long size = mChannel.size();
+			if (mRequestedOffset == StreamCodec.RESUME) {
+				mReceived = size;
+			} else if (mRequestedOffset >= 0 && mRequestedOffset <= size) {
+				mReceived = mRequestedOffset;
+				mChannel.truncate(mRequestedOffset);
+			} else {
+				throw new ProtocolException("Cannot resume at " + mRequestedOffset + "; have " + size + " bytes");
+			}
+			acknowledge(open, responder);
+		}
+
+		@Override
+		void data(Frame request, Responder responder) throws IOException {
+			requireLength(request, StreamCodec.DATA_HEADER_LENGTH);
+			byte[] payload = request.getPayload();
+			long offset = StreamCodec.dataOffset(payload);
+			if (offset != mReceived) {
+				throw new ProtocolException("Expected offset " + mReceived + ", got " + offset);
+			}
+			int length = payload.length - StreamCodec.DATA_HEADER_LENGTH;
+			if (mReceived + length > mAcknowledged + UPLOAD_WINDOW) {
+				throw new ProtocolException("Upload window exceeded");
+			}
+			ByteBuffer chunk = ByteBuffer.wrap(payload, StreamCodec.DATA_HEADER_LENGTH, length);
+			while (chunk.hasRemaining()) {
+				mChannel.write(chunk, mReceived + chunk.position() - StreamCodec.DATA_HEADER_LENGTH);
+			}
+			mReceived += length;
+			if (mReceived - mAcknowledged >= UPLOAD_WINDOW / 2) {
+				acknowledge(request, responder);
+			}
+		}
+
+		@Override
+		void end(Frame request, Responder responder) throws IOException {
+			requireLength(request, StreamCodec.END_LENGTH);
+			long length = StreamCodec.endLength(request.getPayload());
+			if (length != mReceived) {
+				throw new ProtocolException("Stream ended at " + length + " but " + mReceived + " bytes were received");
+			}
+			mChannel.force(false);
+			close(mKey, this);
+			responder.respond(request.reply(Frame.TYPE_RESPONSE, "Received " + length + " bytes"));
+		}
+
+		private void acknowledge(Frame request, Responder responder) {
+			mAcknowledged = mReceived;
+			responder.respond(request.reply(Frame.TYPE_STREAM_ACK, StreamCodec.ack(mReceived, UPLOAD_WINDOW)));
+		}
+	}
+
+	private class Download extends Transfer {
+		private final long mSize;
+		private long mSent;
+
+		/** The client may be sent bytes up to (excluding) this offset. */
+		private long mLimit;
+
+		private MappedByteBuffer mRegion;
+		private long mRegionStart;
+
+		Download(String key, File file, long offset, int window) throws IOException {
+			super(key, file, "r");
+			mSize = mChannel.size();
+			if (offset < 0 || offset > mSize) {
+				closeQuietly();
+				throw new ProtocolException("Cannot resume at " + offset + "; file has " + mSize + " bytes");
+			}
+			mSent = offset;
+			mLimit = offset + window;
+		}
+
+		@Override
+		void start(Frame open, Responder responder) throws IOException {
+			pump(open, responder);
+		}
+
+		@Override
+		void closeQuietly() {
+			mRegion = null;
+			super.closeQuietly();
+		}
+
+		@Override
+		void ack(Frame request, Responder responder) throws IOException {
+			requireLength(request, StreamCodec.ACK_LENGTH);
+			byte[] payload = request.getPayload();
+			long offset = StreamCodec.ackOffset(payload);
+			int window = StreamCodec.ackWindow(payload);
+			if (offset < 0 || window <= 0) {
+				throw new ProtocolException("Bad ACK offset " + offset + " or window " + window);
+			}
+			mLimit = Math.max(mLimit, offset + window);
+			pump(request, responder);
+		}
+
+		/**
+		 * Sends chunks until the window is used up, and the end of the stream once the whole
+		 * file has been sent.
+		 */
+		private void pump(Frame request, Responder responder) throws IOException {
+			while (mSent < mSize && mSent < mLimit) {
+				ByteBuffer region = map(mSent);
+				// A chunk never crosses the end of the mapped region; the next one remaps
+				int length = (int) Math.min(Math.min(CHUNK_SIZE, region.remaining()), Math.min(mSize, mLimit) - mSent);
+				region.limit(region.position() + length);
+				responder.respond(request.reply(Frame.TYPE_STREAM_DATA, StreamCodec.data(mSent, region)));
+				mSent += length;
+			}
+			if (mSent == mSize) {
+				close(mKey, this);
+				responder.respond(request.reply(Frame.TYPE_STREAM_END, StreamCodec.end(mSize)));
+			}
+		}
+
+		/**
+		 * @return The mapped region holding {@code offset}, positioned there.
+		 */
+		private ByteBuffer map(long offset) throws IOException {
+			if (mRegion == null || offset < mRegionStart || offset >= mRegionStart + mRegion.capacity()) {
+				mRegionStart = offset;
+				mRegion = mChannel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAP_REGION, mSize - offset));
+			}
+			mRegion.clear();
+			mRegion.position((int) (offset - mRegionStart));
+			return mRegion;
+		}
+	}
+}
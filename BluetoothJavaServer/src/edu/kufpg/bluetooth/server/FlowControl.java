@@ -0,0 +1,202 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credit-based flow control for one session, in both directions. Each side tells the other how
+ * many credited frames ({@link Frame#TYPE_REQUEST}s one way, {@link Frame#TYPE_RESPONSE}s and
+ * {@link Frame#TYPE_ERROR}s the other) it can accept with a {@link Frame#TYPE_CREDIT} frame. Its
+ * payload is a cumulative limit as a 4-byte big-endian integer: the peer may keep sending until
+ * it has sent that many credited frames in total. Since limits are cumulative, a repeated or
+ * overtaken grant does no harm. Stream frames have their own window (see {@link StreamCodec}),
+ * and control frames are never credited.
+ * <p>
+ * A peer that has never sent a CREDIT frame is neither limited nor granted credit, so clients
+ * and servers that predate flow control keep working. A client that wants flow control grants
+ * credit first; the server answers with its own grant, and then renews it whenever half of the
+ * window has been used up.
+ * <p>
+ * Credited frames that the peer has no credit for wait in a send queue bounded by the
+ * {@link FlowControlPolicy}, which also decides what happens when the queue is full. Counts wrap
+ * around and are compared accordingly.
+ */
+final class FlowControl {
+	/** How long {@link FlowControlPolicy.Overflow#BLOCK} lets a sender wait for room. */
+	static final long BLOCK_TIMEOUT_MS = 30000;
+
+	/**
+	 * Where frames go once they may be sent.
+	 */
+	interface Sink {
+		void write(Frame frame) throws IOException;
+
+		/**
+		 * Told about a queued frame that {@link FlowControlPolicy.Overflow#DROP_OLDEST} discarded.
+		 */
+		void dropped(Frame frame);
+	}
+
+	private final FlowControlPolicy mPolicy;
+	private final Sink mSink;
+	private final LinkedList<Frame> mQueue = new LinkedList<Frame>();
+
+	/** Whether the peer takes part in flow control, and so is granted credit. */
+	private boolean mGranting;
+	/** How many of the peer's credited frames have been dealt with, and the limit granted. */
+	private int mConsumed;
+	private int mGranted;
+
+	/** How many credited frames have been sent, and the limit the peer granted, if any. */
+	private int mSent;
+	private int mLimit;
+	private boolean mLimited;
+	private boolean mClosed;
+
+	FlowControl(FlowControlPolicy policy, Sink sink) {
+		mPolicy = policy;
+		mSink = sink;
+	}
+
+	static boolean isCredited(Frame frame) {
+		int type = frame.getType();
+		return type == Frame.TYPE_REQUEST || type == Frame.TYPE_RESPONSE || type == Frame.TYPE_ERROR;
+	}
+
+	static Frame credit(int limit) {
+		return new Frame(Frame.TYPE_CREDIT, 0, 0, ByteBuffer.allocate(4).putInt(limit).array());
+	}
+
+	/**
+	 * Records that one of the peer's credited frames has been dealt with, granting it more credit
+	 * once half of the window has been used up.
+	 */
+	void consumed() throws IOException {
+		Frame grant = null;
+		synchronized (this) {
+			mConsumed++;
+			if (mGranting && mGranted - mConsumed <= mPolicy.getWindow() / 2) {
+				mGranted = mConsumed + mPolicy.getWindow();
+				grant = credit(mGranted);
+			}
+		}
+		if (grant != null) {
+			mSink.write(grant);
+		}
+	}
+
+	/**
+	 * Sends a frame now if it is not credited or the peer has credit for it, and otherwise
+	 * queues it until the peer grants more.
+	 * @param mayWait Whether the calling thread may wait for room in the queue.
+	 * @throws QueueOverflowException if the queue is full and the policy does not let the frame
+	 * wait for room, or the wait timed out.
+	 */
+	void send(Frame frame, boolean mayWait) throws IOException {
+		if (!isCredited(frame)) {
+			mSink.write(frame);
+			return;
+		}
+		Frame dropped = null;
+		synchronized (this) {
+			long deadline = 0;
+			while (true) {
+				if (mClosed) {
+					throw new IOException("Session closed");
+				}
+				if (mQueue.isEmpty() && (!mLimited || mLimit - mSent > 0)) {
+					mSent++;
+					break;
+				}
+				if (mQueue.size() < mPolicy.getQueueCapacity()) {
+					mQueue.add(frame);
+					return;
+				}
+				FlowControlPolicy.Overflow overflow = mPolicy.getOverflow();
+				if (overflow == FlowControlPolicy.Overflow.DROP_OLDEST) {
+					dropped = mQueue.removeFirst();
+					mQueue.add(frame);
+					frame = null;
+					break;
+				}
+				if (overflow == FlowControlPolicy.Overflow.FAIL_FAST || !mayWait) {
+					throw new QueueOverflowException("Send queue full (" + mQueue.size() + " frames waiting for credit)");
+				}
+				long now = System.nanoTime();
+				if (deadline == 0) {
+					deadline = now + TimeUnit.MILLISECONDS.toNanos(BLOCK_TIMEOUT_MS);
+				} else if (deadline - now <= 0) {
+					throw new QueueOverflowException("Send queue still full after " + BLOCK_TIMEOUT_MS + " ms");
+				}
+				try {
+					TimeUnit.NANOSECONDS.timedWait(this, deadline - now);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for room in the send queue");
+				}
+			}
+		}
+		if (dropped != null) {
+			mSink.dropped(dropped);
+		}
+		if (frame != null) {
+			mSink.write(frame);
+		}
+	}
+
+	/**
+	 * Takes in a CREDIT frame from the peer, sending whatever queued frames it allows. The first
+	 * one is answered with a grant of the peer's own.
+	 * @throws ProtocolException if the frame is malformed.
+	 */
+	void onCredit(Frame credit) throws IOException {
+		byte[] payload = credit.getPayload();
+		if (payload.length != 4) {
+			throw new ProtocolException("CREDIT payload of " + payload.length + " bytes");
+		}
+		int limit = ByteBuffer.wrap(payload).getInt();
+		Frame grant = null;
+		List<Frame> ready = null;
+		synchronized (this) {
+			if (!mGranting) {
+				mGranting = true;
+				mGranted = mConsumed + mPolicy.getWindow();
+				grant = credit(mGranted);
+			}
+			if (!mLimited || limit - mLimit > 0) {
+				mLimit = limit;
+				mLimited = true;
+				while (!mQueue.isEmpty() && mLimit - mSent > 0) {
+					if (ready == null) {
+						ready = new ArrayList<Frame>();
+					}
+					ready.add(mQueue.removeFirst());
+					mSent++;
+				}
+				notifyAll();
+			}
+		}
+		if (grant != null) {
+			mSink.write(grant);
+		}
+		if (ready != null) {
+			for (Frame frame : ready) {
+				mSink.write(frame);
+			}
+		}
+	}
+
+	/**
+	 * Discards the queue and fails every sender still waiting for room.
+	 */
+	synchronized void close() {
+		mClosed = true;
+		mQueue.clear();
+		notifyAll();
+	}
+}
@@ -0,0 +1,77 @@
+package edu.kufpg.bluetooth.server;
+
+import java.util.Locale;
+
+/**
+ * Sizes a session's credit-based flow control (see {@link FlowControl}): how many credited frames
+ * the peer may have outstanding, how many of this side's frames may wait for the peer's credit,
+ * and what happens to a frame that finds that queue full.
+ */
+public final class FlowControlPolicy {
+	/**
+	 * What to do with a frame that finds the send queue full.
+	 */
+	public enum Overflow {
+		/**
+		 * The sending thread waits for room, for up to {@link FlowControl#BLOCK_TIMEOUT_MS}. A
+		 * session's own reading thread cannot wait, since the credit would arrive through it, so
+		 * there this behaves like {@link #FAIL_FAST}.
+		 */
+		BLOCK,
+		/** The oldest queued frame is discarded to make room. */
+		DROP_OLDEST,
+		/** The frame is refused, and the session is closed, since its peer is not keeping up. */
+		FAIL_FAST
+	}
+
+	/** A window of 64 frames, a queue of 256, and senders that wait for room. */
+	public static final FlowControlPolicy DEFAULT = new FlowControlPolicy(64, 256, Overflow.BLOCK);
+
+	private final int mWindow;
+	private final int mQueueCapacity;
+	private final Overflow mOverflow;
+
+	/**
+	 * @param window How many credited frames the peer may send beyond those already dealt with.
+	 * @param queueCapacity How many frames may wait for the peer to grant credit.
+	 * @param overflow What to do when the queue is full.
+	 */
+	public FlowControlPolicy(int window, int queueCapacity, Overflow overflow) {
+		if (window < 2 || queueCapacity < 1 || overflow == null) {
+			throw new IllegalArgumentException("Bad flow control policy: window " + window
+					+ ", queue " + queueCapacity + ", " + overflow);
+		}
+		mWindow = window;
+		mQueueCapacity = queueCapacity;
+		mOverflow = overflow;
+	}
+
+	/**
+	 * Parses a policy written as {@code <window>[,<queueCapacity>[,block|drop-oldest|fail-fast]]}.
+	 */
+	public static FlowControlPolicy parse(String spec) {
+		String[] parts = spec.split(",");
+		int window = Integer.parseInt(parts[0]);
+		int queueCapacity = parts.length > 1 ? Integer.parseInt(parts[1]) : DEFAULT.mQueueCapacity;
+		Overflow overflow = parts.length > 2
+				? Overflow.valueOf(parts[2].toUpperCase(Locale.US).replace('-', '_')) : DEFAULT.mOverflow;
+		return new FlowControlPolicy(window, queueCapacity, overflow);
+	}
+
+	public int getWindow() {
+		return mWindow;
+	}
+
+	public int getQueueCapacity() {
+		return mQueueCapacity;
+	}
+
+	public Overflow getOverflow() {
+		return mOverflow;
+	}
+
+	@Override
+	public String toString() {
+		return "window " + mWindow + " / queue " + mQueueCapacity + " / " + mOverflow.name().toLowerCase(Locale.US).replace('_', '-');
+	}
+}
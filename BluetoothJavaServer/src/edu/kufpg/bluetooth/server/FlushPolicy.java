@@ -0,0 +1,57 @@
+package edu.kufpg.bluetooth.server;
+
+/**
+ * Decides when batched responses are written out. Responses produced together (for instance,
+ * answers to several pipelined requests that arrived in one read) are buffered and sent in a
+ * single write, which matters a great deal over Bluetooth's small MTU. A batch is written as
+ * soon as it reaches {@link #getMaxBytes()} bytes, and otherwise no later than
+ * {@link #getMaxDelayMicros()} after the read that produced it.
+ */
+public final class FlushPolicy {
+	/**
+	 * Writes each read's responses together, as soon as they are all ready, and never holds
+	 * them back waiting for more.
+	 */
+	public static final FlushPolicy DEFAULT = new FlushPolicy(8 * 1024, 0);
+
+	private final int mMaxBytes;
+	private final long mMaxDelayMicros;
+
+	/**
+	 * @param maxBytes Write a batch as soon as it holds at least this many bytes.
+	 * @param maxDelayMicros How long a batch may wait for more responses before being written.
+	 * {@code 0} writes at the end of every read.
+	 */
+	public FlushPolicy(int maxBytes, long maxDelayMicros) {
+		if (maxBytes < 1 || maxDelayMicros < 0) {
+			throw new IllegalArgumentException("Bad flush policy: " + maxBytes + " bytes, " + maxDelayMicros + " us");
+		}
+		mMaxBytes = maxBytes;
+		mMaxDelayMicros = maxDelayMicros;
+	}
+
+	/**
+	 * Parses a policy written as {@code <maxBytes>,<maxDelayMicros>}.
+	 */
+	public static FlushPolicy parse(String spec) {
+		int comma = spec.indexOf(',');
+		if (comma < 0) {
+			return new FlushPolicy(Integer.parseInt(spec), DEFAULT.mMaxDelayMicros);
+		}
+		return new FlushPolicy(Integer.parseInt(spec.substring(0, comma)),
+				Long.parseLong(spec.substring(comma + 1)));
+	}
+
+	public int getMaxBytes() {
+		return mMaxBytes;
+	}
+
+	public long getMaxDelayMicros() {
+		return mMaxDelayMicros;
+	}
+
+	@Override
+	public String toString() {
+		return mMaxBytes + " bytes / " + mMaxDelayMicros + " us";
+	}
+}
@@ -0,0 +1,195 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.UnsupportedEncodingException;
+import java.util.zip.CRC32;
+
+/**
+ * One message on the wire. The Java server, the Android client, and {@code bluez_server.c} all
+ * speak the same versioned, length-prefixed format (integers are big-endian):
+ *
+ * <pre>
+ * offset  size  field
+ *      0     1  version (currently 1)
+ *      1     1  type (see the TYPE_ constants)
+ *      2     1  flags (see the FLAG_ constants)
+ *      3     1  reserved, must be 0
+ *      4     4  request ID, echoed in the response
+ *      8     4  payload length N
+ *     12     N  payload
+ *   12+N     4  CRC-32 of the payload, only if FLAG_CHECKSUM is set
+ * </pre>
+ *
+ * Use a {@link FrameDecoder} to turn a byte stream back into frames.
+ */
+public final class Frame {
+	public static final int VERSION = 1;
+	public static final int HEADER_LENGTH = 12;
+	public static final int CHECKSUM_LENGTH = 4;
+
+	/** Frames with longer payloads are rejected as corrupt rather than buffered. */
+	public static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+	public static final int TYPE_REQUEST = 1;
+	public static final int TYPE_RESPONSE = 2;
+	public static final int TYPE_ERROR = 3;
+	/** Negotiates per-connection options such as compression. See {@link Compression}. */
+	public static final int TYPE_HELLO = 4;
+	/** Asks for a {@link #TYPE_PONG} with the same ID and payload, to check the link is alive. */
+	public static final int TYPE_PING = 5;
+	public static final int TYPE_PONG = 6;
+	/** Grants the peer credit to send more requests or responses. See {@link FlowControl}. */
+	public static final int TYPE_CREDIT = 7;
+
+	/** Opens a file transfer; the request ID names the stream. See {@link StreamCodec}. */
+	public static final int TYPE_STREAM_OPEN = 16;
+	/** One chunk of a file transfer. */
+	public static final int TYPE_STREAM_DATA = 17;
+	/** Acknowledges received stream bytes and grants the sender more window. */
+	public static final int TYPE_STREAM_ACK = 18;
+	/** Marks the end of a stream's data. */
+	public static final int TYPE_STREAM_END = 19;
+
+	/** The payload is followed by its CRC-32. */
+	public static final int FLAG_CHECKSUM = 0x01;
+	/** The payload is compressed with the codec negotiated for the connection. */
+	public static final int FLAG_COMPRESSED = 0x02;
+
+	private static final String CHARSET = "UTF-8";
+	private static final byte[] EMPTY = new byte[0];
+
+	private final int mType;
+	private final int mFlags;
+	private final int mRequestId;
+	private final byte[] mPayload;
+
+	public Frame(int type, int flags, int requestId, byte[] payload) {
+		if (payload == null) {
+			payload = EMPTY;
+		}
+		if (payload.length > MAX_PAYLOAD_LENGTH) {
+			throw new IllegalArgumentException("Payload too long: " + payload.length);
+		}
+		mType = type;
+		mFlags = flags;
+		mRequestId = requestId;
+		mPayload = payload;
+	}
+
+	public Frame(int type, int requestId, String text) {
+		this(type, 0, requestId, toBytes(text));
+	}
+
+	public int getType() {
+		return mType;
+	}
+
+	public int getFlags() {
+		return mFlags;
+	}
+
+	public boolean hasFlag(int flag) {
+		return (mFlags & flag) != 0;
+	}
+
+	public int getRequestId() {
+		return mRequestId;
+	}
+
+	public byte[] getPayload() {
+		return mPayload;
+	}
+
+	/**
+	 * @return The payload decoded as UTF-8 text.
+	 */
+	public String getText() {
+		try {
+			return new String(mPayload, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * @return How many bytes {@link #encode()} produces.
+	 */
+	public int getEncodedLength() {
+		return HEADER_LENGTH + mPayload.length + (hasFlag(FLAG_CHECKSUM) ? CHECKSUM_LENGTH : 0);
+	}
+
+	/**
+	 * @return This frame in wire format.
+	 */
+	public byte[] encode() {
+		byte[] out = new byte[getEncodedLength()];
+		encode(out, 0);
+		return out;
+	}
+
+	/**
+	 * Writes this frame in wire format into an existing buffer, such as one from the
+	 * {@link BufferPool}.
+	 * @param out The buffer, with at least {@link #getEncodedLength()} bytes free at {@code off}.
+	 * @param off Where to start writing.
+	 * @return The number of bytes written.
+	 */
+	public int encode(byte[] out, int off) {
+		out[off] = (byte) VERSION;
+		out[off + 1] = (byte) mType;
+		out[off + 2] = (byte) mFlags;
+		out[off + 3] = 0;
+		putInt(out, off + 4, mRequestId);
+		putInt(out, off + 8, mPayload.length);
+		System.arraycopy(mPayload, 0, out, off + HEADER_LENGTH, mPayload.length);
+		if (hasFlag(FLAG_CHECKSUM)) {
+			putInt(out, off + HEADER_LENGTH + mPayload.length, checksum(mPayload, 0, mPayload.length));
+		}
+		return getEncodedLength();
+	}
+
+	/**
+	 * Builds the response to this frame. The response has the same request ID and asks for a
+	 * checksum if this frame carried one.
+	 * @param type The response's type.
+	 * @param payload The response's payload.
+	 * @return The response frame.
+	 */
+	public Frame reply(int type, byte[] payload) {
+		return new Frame(type, mFlags & FLAG_CHECKSUM, mRequestId, payload);
+	}
+
+	public Frame reply(int type, String text) {
+		return reply(type, toBytes(text));
+	}
+
+	@Override
+	public String toString() {
+		return "Frame[type=" + mType + ", id=" + mRequestId + ", length=" + mPayload.length + "]";
+	}
+
+	static int checksum(byte[] b, int off, int len) {
+		CRC32 crc = new CRC32();
+		crc.update(b, off, len);
+		return (int) crc.getValue();
+	}
+
+	static void putInt(byte[] b, int off, int value) {
+		b[off] = (byte) (value >>> 24);
+		b[off + 1] = (byte) (value >>> 16);
+		b[off + 2] = (byte) (value >>> 8);
+		b[off + 3] = (byte) value;
+	}
+
+	static int getInt(byte[] b, int off) {
+		return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16
+				| (b[off + 2] & 0xFF) << 8 | (b[off + 3] & 0xFF);
+	}
+
+	private static byte[] toBytes(String text) {
+		try {
+			return text.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reassembles {@link Frame Frames} from a byte stream. Bytes can be fed in whatever pieces the
+ * transport delivers them (a partial header, several frames at once, ...); complete frames come
+ * out of {@link #poll()} in order. The internal buffer only grows as large as the largest frame
+ * seen, so no fixed-size read buffers are needed. It comes from the {@link BufferPool}, and goes
+ * back whenever every buffered frame has been polled, so an idle decoder holds no memory.
+ */
+public class FrameDecoder {
+	private static final byte[] NO_BUFFER = new byte[0];
+
+	private byte[] mBuffer = NO_BUFFER;
+	private int mStart, mEnd;
+
+	/**
+	 * Appends bytes received from the transport.
+	 */
+	public void feed(byte[] b, int off, int len) {
+		ensureSpace(len);
+		System.arraycopy(b, off, mBuffer, mEnd, len);
+		mEnd += len;
+	}
+
+	/**
+	 * Appends bytes received from the transport, consuming all remaining bytes of the buffer.
+	 */
+	public void feed(ByteBuffer b) {
+		int len = b.remaining();
+		ensureSpace(len);
+		b.get(mBuffer, mEnd, len);
+		mEnd += len;
+	}
+
+	/**
+	 * Removes the next complete frame from the buffered bytes.
+	 * @return The frame, or {@code null} if more bytes are needed.
+	 * @throws ProtocolException if the buffered bytes are not a valid frame.
+	 */
+	public Frame poll() throws ProtocolException {
+		int available = mEnd - mStart;
+		if (available < Frame.HEADER_LENGTH) {
+			return null;
+		}
+		int version = mBuffer[mStart] & 0xFF;
+		if (version != Frame.VERSION) {
+			throw new ProtocolException("Unsupported protocol version " + version);
+		}
+		int type = mBuffer[mStart + 1] & 0xFF;
+		int flags = mBuffer[mStart + 2] & 0xFF;
+		int requestId = Frame.getInt(mBuffer, mStart + 4);
+		int length = Frame.getInt(mBuffer, mStart + 8);
+		if (length < 0 || length > Frame.MAX_PAYLOAD_LENGTH) {
+			throw new ProtocolException("Bad payload length " + (length & 0xFFFFFFFFL));
+		}
+		int total = Frame.HEADER_LENGTH + length
+				+ ((flags & Frame.FLAG_CHECKSUM) != 0 ? Frame.CHECKSUM_LENGTH : 0);
+		if (available < total) {
+			return null;
+		}
+
+		int payloadStart = mStart + Frame.HEADER_LENGTH;
+		byte[] payload = new byte[length];
+		System.arraycopy(mBuffer, payloadStart, payload, 0, length);
+		if ((flags & Frame.FLAG_CHECKSUM) != 0) {
+			int expected = Frame.getInt(mBuffer, payloadStart + length);
+			if (expected != Frame.checksum(payload, 0, length)) {
+				throw new ProtocolException("Checksum mismatch in request " + requestId);
+			}
+		}
+		mStart += total;
+		if (mStart == mEnd) {
+			release();
+		}
+		return new Frame(type, flags, requestId, payload);
+	}
+
+	/**
+	 * Discards any buffered bytes and returns the buffer to the pool. The decoder can still be
+	 * fed afterwards.
+	 */
+	public void release() {
+		if (mBuffer != NO_BUFFER) {
+			BufferPool.release(mBuffer);
+			mBuffer = NO_BUFFER;
+		}
+		mStart = mEnd = 0;
+	}
+
+	/**
+	 * @return {@code true} if some bytes of an incomplete frame are buffered.
+	 */
+	public boolean hasPartialFrame() {
+		return mEnd > mStart;
+	}
+
+	/**
+	 * Reads from a stream until a whole frame is available.
+	 * @param in The stream to read from. Whatever is read beyond the frame stays buffered.
+	 * @param scratch A buffer to read into.
+	 * @return The next frame, or {@code null} if the stream ended cleanly between frames.
+	 * @throws IOException if reading fails, the stream ends mid-frame, or the frame is invalid.
+	 */
+	public Frame read(InputStream in, byte[] scratch) throws IOException {
+		Frame frame;
+		while ((frame = poll()) == null) {
+			int n = in.read(scratch);
+			if (n < 0) {
+				if (hasPartialFrame()) {
+					throw new ProtocolException("Stream ended in the middle of a frame");
+				}
+				return null;
+			}
+			feed(scratch, 0, n);
+		}
+		return frame;
+	}
+
+	private void ensureSpace(int len) {
+		if (mBuffer.length - mEnd >= len) {
+			return;
+		}
+		int buffered = mEnd - mStart;
+		byte[] target = mBuffer;
+		if (buffered + len > mBuffer.length) {
+			target = BufferPool.acquire(Math.max(mBuffer.length * 2, buffered + len));
+		}
+		System.arraycopy(mBuffer, mStart, target, 0, buffered);
+		if (target != mBuffer && mBuffer != NO_BUFFER) {
+			BufferPool.release(mBuffer);
+		}
+		mBuffer = target;
+		mStart = 0;
+		mEnd = buffered;
+	}
+}
@@ -0,0 +1,43 @@
+package edu.kufpg.bluetooth.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Routes each request to the {@link RequestHandler} registered for its {@link Frame} type.
+ * Requests of unregistered types, and requests whose handler throws, are answered with an
+ * {@link Frame#TYPE_ERROR} frame.
+ */
+class HandlerRegistry {
+	private final ConcurrentMap<Integer, RequestHandler> mHandlers = new ConcurrentHashMap<Integer, RequestHandler>();
+
+	/**
+	 * @param type The message type to handle.
+	 * @param handler The handler, or {@code null} to unregister.
+	 */
+	void register(int type, RequestHandler handler) {
+		if (handler == null) {
+			mHandlers.remove(type);
+		} else {
+			mHandlers.put(type, handler);
+		}
+	}
+
+	void dispatch(Frame request, RequestHandler.Responder responder) {
+		RequestHandler handler = mHandlers.get(request.getType());
+		if (handler == null) {
+			responder.respond(request.reply(Frame.TYPE_ERROR, "Unsupported frame type " + request.getType()));
+			return;
+		}
+		try {
+			handler.handle(request, responder);
+		} catch (Exception e) {
+			responder.respond(errorResponse(request, e));
+		}
+	}
+
+	static Frame errorResponse(Frame request, Exception e) {
+		String message = e.getMessage();
+		return request.reply(Frame.TYPE_ERROR, e.getClass().getSimpleName() + (message == null ? "" : ": " + message));
+	}
+}
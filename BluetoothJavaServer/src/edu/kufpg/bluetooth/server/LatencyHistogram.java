@@ -0,0 +1,113 @@
+package edu.kufpg.bluetooth.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram in the style of HdrHistogram. Values are grouped into
+ * power-of-two ranges, each split into 64 linear sub-buckets, so every recorded value is
+ * accurate to within about 1.6% while the whole histogram is a fixed array of a few thousand
+ * counters. Recording is a single atomic increment and never allocates.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Enough ranges for any non-negative {@code long} number of nanoseconds. */
+	private static final int RANGES = 64 - SUB_BUCKET_BITS + 1;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray((RANGES + 1) * SUB_BUCKETS / 2);
+	private final AtomicLong mTotalCount = new AtomicLong();
+	private final AtomicLong mTotalNanos = new AtomicLong();
+	private final AtomicLong mMaxNanos = new AtomicLong();
+
+	public void recordNanos(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		mCounts.incrementAndGet(indexOf(nanos));
+		mTotalCount.incrementAndGet();
+		mTotalNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = mMaxNanos.get()) && !mMaxNanos.compareAndSet(max, nanos)) {
+			// Another thread raised the maximum first; retry against its value
+		}
+	}
+
+	/**
+	 * Records the time elapsed since a {@link System#nanoTime()} reading.
+	 */
+	public void recordSince(long startNanos) {
+		recordNanos(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		return mTotalCount.get();
+	}
+
+	public long getMaxNanos() {
+		return mMaxNanos.get();
+	}
+
+	public double getMeanNanos() {
+		long count = mTotalCount.get();
+		return count == 0 ? 0 : (double) mTotalNanos.get() / count;
+	}
+
+	/**
+	 * @param percentile A percentile between 0 and 100 (e.g., 99.9).
+	 * @return The smallest recorded value (to the histogram's precision) that is at least as
+	 * large as the given percentage of recorded values, or 0 if nothing has been recorded.
+	 */
+	public long getPercentileNanos(double percentile) {
+		long count = mTotalCount.get();
+		if (count == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < mCounts.length(); i++) {
+			seen += mCounts.get(i);
+			if (seen >= target) {
+				return Math.min(highestValueAt(i), mMaxNanos.get());
+			}
+		}
+		return mMaxNanos.get();
+	}
+
+	/**
+	 * @return A one-line summary in microseconds, e.g. {@code "n=10 p50=120 p99=800 max=950 us"}.
+	 */
+	public String summarize() {
+		return "n=" + getCount()
+				+ " p50=" + micros(getPercentileNanos(50))
+				+ " p90=" + micros(getPercentileNanos(90))
+				+ " p99=" + micros(getPercentileNanos(99))
+				+ " p99.9=" + micros(getPercentileNanos(99.9))
+				+ " max=" + micros(getMaxNanos()) + " us";
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		// The range is how far the top bit sits above the sub-bucket bits
+		int range = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> range) - SUB_BUCKETS / 2;
+		return range * SUB_BUCKETS / 2 + SUB_BUCKETS / 2 + subBucket;
+	}
+
+	private static long highestValueAt(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int range = (index - SUB_BUCKETS / 2) / (SUB_BUCKETS / 2);
+		int subBucket = (index - SUB_BUCKETS / 2) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+		return ((long) (subBucket + 1) << range) - 1;
+	}
+}
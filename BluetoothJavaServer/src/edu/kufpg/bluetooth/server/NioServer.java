@@ -0,0 +1,638 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An event-driven TCP engine for {@link BluetoothServer}. Rather than pinning a thread per
+ * connection the way {@link ClientSession} does, a handful of selector threads (one per core by
+ * default) multiplex every session, so a single gateway can hold thousands of connections.
+ * Requests are routed through {@link BluetoothServer#dispatch(Frame, RequestHandler.Responder)},
+ * exactly as on the blocking transports.
+ */
+public class NioServer implements Closeable {
+	/** Size of each selector thread's direct read buffer. */
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+	/** Small responses are packed together into outbound buffers of this size. */
+	private static final int OUTBOUND_BUFFER_SIZE = 8 * 1024;
+
+	/** A session with more unsent output than this is not read from until it catches up. */
+	static final int MAX_PENDING_OUTPUT = 256 * 1024;
+
+	private final BluetoothServer mServer;
+	private final ServerMetrics mMetrics;
+	private final ServerSocketChannel mServerChannel;
+	private final SelectorLoop[] mLoops;
+	private final AtomicInteger mNextLoop = new AtomicInteger();
+	private volatile boolean mClosed;
+
+	public NioServer(BluetoothServer server, SocketAddress bindAddress, int selectorThreads) throws IOException {
+		if (selectorThreads < 1) {
+			throw new IllegalArgumentException("selectorThreads must be positive: " + selectorThreads);
+		}
+		mServer = server;
+		mMetrics = server.getMetrics();
+		mServerChannel = ServerSocketChannel.open();
+		mServerChannel.configureBlocking(false);
+		mServerChannel.socket().setReuseAddress(true);
+		mServerChannel.socket().bind(bindAddress, 1024);
+		mLoops = new SelectorLoop[selectorThreads];
+		for (int i = 0; i < selectorThreads; i++) {
+			mLoops[i] = new SelectorLoop(i);
+		}
+	}
+
+	public NioServer(BluetoothServer server, int port) throws IOException {
+		this(server, new InetSocketAddress(port), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Starts the selector threads. The first one also accepts new connections. From now on, the
+	 * server's {@link BluetoothServer#drain} and {@link BluetoothServer#stop()} apply to this
+	 * engine too.
+	 */
+	public void start() throws IOException {
+		mServer.attach(this);
+		mServerChannel.register(mLoops[0].mSelector, SelectionKey.OP_ACCEPT);
+		for (SelectorLoop loop : mLoops) {
+			loop.mThread.start();
+		}
+	}
+
+	/**
+	 * @return The address this engine is actually bound to (useful after binding to port 0).
+	 */
+	public InetSocketAddress getLocalAddress() {
+		return (InetSocketAddress) mServerChannel.socket().getLocalSocketAddress();
+	}
+
+	public String getDescription() {
+		return "nio:/" + getLocalAddress() + " (" + mLoops.length + " selector threads)";
+	}
+
+	/**
+	 * Blocks until every selector thread has exited.
+	 */
+	public void join() throws InterruptedException {
+		for (SelectorLoop loop : mLoops) {
+			loop.mThread.join();
+		}
+	}
+
+	/**
+	 * Stops accepting new connections, leaving the existing sessions running. The channel is
+	 * closed on the accepting thread, so an accept in progress is not cut short.
+	 */
+	void stopAccepting() {
+		mLoops[0].execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mServerChannel.close();
+				} catch (IOException e) {
+					mMetrics.error(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops accepting, closes every session after writing what its socket will take of the
+	 * responses already queued, and stops the selector threads.
+	 */
+	@Override
+	public void close() throws IOException {
+		mClosed = true;
+		mServerChannel.close();
+		for (SelectorLoop loop : mLoops) {
+			loop.mSelector.wakeup();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = mServerChannel.accept()) != null) {
+			mMetrics.connectionAccepted();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			int index = (mNextLoop.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length;
+			mLoops[index].add(channel);
+		}
+	}
+
+	/**
+	 * One selector and the thread that services it.
+	 */
+	private class SelectorLoop implements Runnable {
+		private final Selector mSelector;
+		private final Thread mThread;
+		private final Queue<SocketChannel> mNewChannels = new ConcurrentLinkedQueue<SocketChannel>();
+
+		/** Responses completed by asynchronous handlers on other threads. */
+		private final Queue<Completion> mCompletions = new ConcurrentLinkedQueue<Completion>();
+
+		/** Work handed to this loop by other threads, such as closing timed-out sessions. */
+		private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+
+		/** Sessions holding back a batch of responses until their flush deadline. */
+		private final Set<NioSession> mDelayedFlushes = new LinkedHashSet<NioSession>();
+
+		/**
+		 * Shared by every session on this loop. A read is always fully fed into the session's
+		 * {@link FrameDecoder} before the next one starts, so one buffer per thread suffices.
+		 */
+		private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+		SelectorLoop(int index) throws IOException {
+			mSelector = Selector.open();
+			mThread = new Thread(this, "nio-selector-" + index);
+			mThread.setDaemon(true);
+		}
+
+		/**
+		 * Hands a new connection to this loop. Registration happens on the loop's own thread,
+		 * since {@link SocketChannel#register} blocks while another thread is selecting.
+		 */
+		void add(SocketChannel channel) {
+			mNewChannels.add(channel);
+			mSelector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!mClosed) {
+					long timeoutMillis = nextFlushTimeoutMillis();
+					if (timeoutMillis < 0) {
+						mSelector.select();
+					} else if (timeoutMillis == 0) {
+						mSelector.selectNow();
+					} else {
+						mSelector.select(timeoutMillis);
+					}
+					registerNewChannels();
+					runTasks();
+					runCompletions();
+					runDelayedFlushes();
+					Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							((NioSession) key.attachment()).handle(key);
+						}
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				// Shutting down
+			} catch (IOException e) {
+				if (!mClosed) {
+					mMetrics.error(e);
+					ServerLog.always("Selector thread " + mThread.getName() + " failed: " + e);
+				}
+			} finally {
+				// Responses completed before the close still go out if the socket takes them
+				runCompletions();
+				for (SelectionKey key : mSelector.keys()) {
+					if (key.attachment() instanceof NioSession) {
+						NioSession session = (NioSession) key.attachment();
+						session.flushNow();
+						session.close();
+					} else {
+						closeQuietly(key);
+					}
+				}
+				try {
+					mSelector.close();
+				} catch (IOException e) {
+					mMetrics.error(e);
+				}
+			}
+		}
+
+		/**
+		 * @return How long the selector may sleep before a delayed flush is due: {@code -1} for
+		 * indefinitely, {@code 0} if one is already overdue.
+		 */
+		private long nextFlushTimeoutMillis() {
+			if (mDelayedFlushes.isEmpty()) {
+				return -1;
+			}
+			long earliest = Long.MAX_VALUE;
+			for (NioSession session : mDelayedFlushes) {
+				if (session.mFlushDeadline != 0) {
+					earliest = Math.min(earliest, session.mFlushDeadline);
+				}
+			}
+			long remaining = earliest - System.nanoTime();
+			// select() only has millisecond resolution; round up so we never spin
+			return remaining <= 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining + 999999));
+		}
+
+		/**
+		 * Hands a response produced on another thread to this loop, which queues it on the
+		 * session's own thread.
+		 */
+		void complete(NioSession session, Frame response) {
+			mCompletions.add(new Completion(session, response));
+			mSelector.wakeup();
+		}
+
+		private void runCompletions() {
+			Completion completion;
+			while ((completion = mCompletions.poll()) != null) {
+				NioSession session = completion.mSession;
+				if (session.mKey.isValid()) {
+					session.send(completion.mResponse);
+					session.batchComplete();
+				}
+			}
+		}
+
+		/**
+		 * Runs the task on this loop's thread.
+		 */
+		void execute(Runnable task) {
+			mTasks.add(task);
+			mSelector.wakeup();
+		}
+
+		private void runTasks() {
+			Runnable task;
+			while ((task = mTasks.poll()) != null) {
+				task.run();
+			}
+		}
+
+		void scheduleFlush(NioSession session) {
+			mDelayedFlushes.add(session);
+		}
+
+		private void runDelayedFlushes() {
+			if (mDelayedFlushes.isEmpty()) {
+				return;
+			}
+			long now = System.nanoTime();
+			Iterator<NioSession> sessions = mDelayedFlushes.iterator();
+			while (sessions.hasNext()) {
+				NioSession session = sessions.next();
+				// A deadline of 0 means the batch was already written when it filled up
+				if (session.mFlushDeadline == 0 || session.mFlushDeadline - now <= 0) {
+					sessions.remove();
+					session.flushNow();
+				}
+			}
+		}
+
+		private void registerNewChannels() {
+			SocketChannel channel;
+			while ((channel = mNewChannels.poll()) != null) {
+				try {
+					NioSession session = new NioSession(this, channel, mReadBuffer, mServer.getFlushPolicy());
+					session.mKey = channel.register(mSelector, SelectionKey.OP_READ, session);
+					session.mWatchdog.start();
+					mMetrics.sessionStarted();
+					if (ServerLog.isEnabled()) {
+						ServerLog.log("NIO client " + channel.socket().getRemoteSocketAddress() + " connected");
+					}
+				} catch (IOException e) {
+					mMetrics.error(e);
+					try {
+						channel.close();
+					} catch (IOException closeException) {
+						mMetrics.error(closeException);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The per-connection state of the event-driven engine: a frame decoder for partially
+	 * received requests and a queue of encoded responses the socket has not yet accepted.
+	 * Responses are batched according to the server's {@link FlushPolicy} and written with a
+	 * single gathering write. Consecutive responses are packed into shared {@link BufferPool}
+	 * buffers, which go back to the pool once written. Responses pass through {@link FlowControl}
+	 * first, on the selector thread, which never waits for a client's credit. The server's
+	 * {@link TimeoutPolicy} is enforced by a {@link SessionWatchdog}, whose pings and timeouts are
+	 * handed to the selector thread. Once more than {@link #MAX_PENDING_OUTPUT} bytes are waiting
+	 * for the socket, the session stops reading requests until the client catches up, so a client
+	 * that sends without reading cannot make the server queue responses without limit.
+	 */
+	private class NioSession implements RequestHandler.Responder, SessionWatchdog.Session {
+		private final SelectorLoop mLoop;
+		private final SocketChannel mChannel;
+		private final ByteBuffer mReadBuffer;
+		private final FlushPolicy mFlushPolicy;
+		private final FrameDecoder mDecoder = new FrameDecoder();
+		private final LinkedList<ByteBuffer> mOutbound = new LinkedList<ByteBuffer>();
+		private final long mSessionId = mServer.nextSessionId();
+		private final Compression mCompression = new Compression();
+		private final FlowControl mFlow = new FlowControl(mServer.getFlowControlPolicy(), new FlowControl.Sink() {
+			@Override
+			public void write(Frame frame) {
+				enqueue(frame);
+			}
+
+			@Override
+			public void dropped(Frame frame) {
+				mMetrics.error("ResponseDropped");
+			}
+		});
+		private final SessionWatchdog mWatchdog = mServer.newWatchdog(this);
+		private SelectionKey mKey;
+		private long mOutboundBytes;
+		/** Whether responses are waiting for the socket to drain. */
+		private boolean mWritePending;
+		/** Whether reading is paused until the outbound queue drops to {@link #MAX_PENDING_OUTPUT}. */
+		private boolean mReadPaused;
+
+		/** When the current batch must be written, if a delayed flush is pending; else 0. */
+		private long mFlushDeadline;
+
+		NioSession(SelectorLoop loop, SocketChannel channel, ByteBuffer readBuffer, FlushPolicy flushPolicy) {
+			mLoop = loop;
+			mChannel = channel;
+			mReadBuffer = readBuffer;
+			mFlushPolicy = flushPolicy;
+		}
+
+		void handle(SelectionKey key) {
+			try {
+				if (key.isReadable()) {
+					boolean open = read();
+					batchComplete();
+					if (!open) {
+						if (ServerLog.isEnabled()) {
+							ServerLog.log("NIO client " + mChannel.socket().getRemoteSocketAddress() + " disconnected");
+						}
+						close();
+						return;
+					}
+				}
+				if (key.isValid() && key.isWritable()) {
+					drain();
+				}
+			} catch (IOException e) {
+				drop(e);
+			}
+		}
+
+		@Override
+		public void respond(Frame response) {
+			// Compress on the responding thread, which may not be the selector thread
+			response = mCompression.outbound(response);
+			if (Thread.currentThread() == mLoop.mThread) {
+				send(response);
+			} else {
+				mLoop.complete(this, response);
+			}
+		}
+
+		@Override
+		public long getSessionId() {
+			return mSessionId;
+		}
+
+		@Override
+		public void ping() {
+			mLoop.complete(this, new Frame(Frame.TYPE_PING, 0, 0, null));
+		}
+
+		@Override
+		public void timedOut(final IOException reason) {
+			mLoop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (mKey.isValid()) {
+						drop(reason);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Passes a response through flow control, dropping the client if its send queue overflows.
+		 */
+		void send(Frame response) {
+			if (!mKey.isValid()) {
+				return;
+			}
+			try {
+				if (FlowControl.isCredited(response)) {
+					mFlow.consumed();
+				}
+				mFlow.send(response, false);
+			} catch (IOException e) {
+				drop(e);
+			}
+		}
+
+		void enqueue(Frame response) {
+			if (!mKey.isValid()) {
+				// Completed after the client went away
+				return;
+			}
+			int length = response.getEncodedLength();
+			ByteBuffer tail = mOutbound.peekLast();
+			if (tail == null || tail.capacity() - tail.limit() < length) {
+				tail = ByteBuffer.wrap(BufferPool.acquire(Math.max(length, OUTBOUND_BUFFER_SIZE)));
+				tail.limit(0);
+				mOutbound.add(tail);
+			}
+			int end = tail.limit();
+			tail.limit(end + length);
+			response.encode(tail.array(), end);
+			mOutboundBytes += length;
+		}
+
+		/**
+		 * Writes the queued responses now, or schedules a delayed flush, as the flush policy
+		 * dictates.
+		 */
+		void batchComplete() {
+			if (mOutboundBytes >= mFlushPolicy.getMaxBytes() || mFlushPolicy.getMaxDelayMicros() == 0) {
+				flushNow();
+			} else if (mOutboundBytes > 0 && mFlushDeadline == 0) {
+				mFlushDeadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(mFlushPolicy.getMaxDelayMicros());
+				mLoop.scheduleFlush(this);
+			}
+		}
+
+		void flushNow() {
+			mFlushDeadline = 0;
+			if (!mKey.isValid()) {
+				return;
+			}
+			try {
+				drain();
+			} catch (IOException e) {
+				drop(e);
+			}
+		}
+
+		private void drop(IOException e) {
+			mMetrics.error(e);
+			if (ServerLog.isEnabled()) {
+				ServerLog.log("NIO client " + mChannel.socket().getRemoteSocketAddress() + " dropped: " + e);
+			}
+			close();
+		}
+
+		void close() {
+			if (mKey.isValid()) {
+				closeQuietly(mKey);
+				mMetrics.sessionEnded();
+				for (ByteBuffer buffer : mOutbound) {
+					BufferPool.release(buffer.array());
+				}
+				mOutbound.clear();
+				mOutboundBytes = 0;
+				mDecoder.release();
+				mFlow.close();
+				mWatchdog.stop();
+			}
+		}
+
+		/**
+		 * Reads and dispatches every complete request available, until the client has too much
+		 * output waiting.
+		 * @return {@code false} if the client has closed its end of the connection.
+		 */
+		private boolean read() throws IOException {
+			int n = 0;
+			while (!mReadPaused && (n = mChannel.read(mReadBuffer)) > 0) {
+				mMetrics.bytesIn(n);
+				mReadBuffer.flip();
+				mDecoder.feed(mReadBuffer);
+				mReadBuffer.clear();
+				dispatchBuffered();
+				if (!mKey.isValid()) {
+					return true;
+				}
+				if (mReadPaused) {
+					drain();
+				} else if (mOutboundBytes >= mFlushPolicy.getMaxBytes()) {
+					write();
+				}
+			}
+			return n >= 0;
+		}
+
+		/**
+		 * Dispatches the complete requests the decoder holds, pausing reading if the responses to
+		 * them back up past {@link #MAX_PENDING_OUTPUT}. The rest stay in the decoder until
+		 * {@link #drain()} resumes.
+		 */
+		private void dispatchBuffered() throws IOException {
+			Frame request;
+			// A response that overflows the client's send queue drops the client mid-batch
+			while (mKey.isValid() && !mReadPaused && (request = mDecoder.poll()) != null) {
+				mWatchdog.received(request);
+				if (request.getType() == Frame.TYPE_HELLO) {
+					respond(mCompression.negotiate(request));
+				} else if (request.getType() == Frame.TYPE_CREDIT) {
+					mFlow.onCredit(request);
+				} else if (request.getType() == Frame.TYPE_PONG) {
+					// Answers a heartbeat; the watchdog has seen it
+				} else {
+					mServer.dispatch(mCompression.inbound(request), this);
+				}
+				if (mOutboundBytes > MAX_PENDING_OUTPUT) {
+					mReadPaused = true;
+				}
+			}
+		}
+
+		/**
+		 * Writes what the socket accepts and, while that brings the outbound queue down to
+		 * {@link #MAX_PENDING_OUTPUT}, resumes reading, starting with the requests already decoded.
+		 */
+		private void drain() throws IOException {
+			write();
+			while (mReadPaused && mKey.isValid() && mOutboundBytes <= MAX_PENDING_OUTPUT) {
+				mReadPaused = false;
+				dispatchBuffered();
+				if (mKey.isValid()) {
+					write();
+				}
+			}
+		}
+
+		/**
+		 * Writes as much of the outbound queue as the socket accepts, in one gathering write, and
+		 * watches the socket for whatever is left over.
+		 */
+		private void write() throws IOException {
+			int ops = mReadPaused ? 0 : SelectionKey.OP_READ;
+			if (mOutbound.isEmpty()) {
+				mKey.interestOps(ops);
+				return;
+			}
+			ByteBuffer[] batch = mOutbound.toArray(new ByteBuffer[mOutbound.size()]);
+			long written = mChannel.write(batch);
+			mOutboundBytes -= written;
+			mMetrics.bytesOut(written);
+			while (!mOutbound.isEmpty() && !mOutbound.getFirst().hasRemaining()) {
+				BufferPool.release(mOutbound.removeFirst().array());
+			}
+			if (mOutbound.isEmpty()) {
+				mKey.interestOps(ops);
+				mWritePending = false;
+				mWatchdog.writeFinished();
+			} else {
+				// The socket buffer is full; resume when it drains
+				mKey.interestOps(ops | SelectionKey.OP_WRITE);
+				// The write timeout counts from the last progress
+				if (written > 0 || !mWritePending) {
+					mWritePending = true;
+					mWatchdog.writeStarted();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A response waiting to be handed to its session's selector thread.
+	 */
+	private static class Completion {
+		final NioSession mSession;
+		final Frame mResponse;
+
+		Completion(NioSession session, Frame response) {
+			mSession = session;
+			mResponse = response;
+		}
+	}
+
+	private void closeQuietly(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			mMetrics.error(e);
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process transport. Clients call {@link #connect()} and get back one end of a pair of
+ * in-memory pipes; the server gets the other end from {@link #accept()}. No sockets or radios
+ * are involved, which makes this the transport to benchmark the server's own overhead with.
+ */
+public class PipeTransport implements Transport {
+	/** How many bytes each direction of a pipe buffers before writers block. */
+	public static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+	/** Handed to {@link #accept()} to wake it up when the transport is closed. */
+	private static final Connection CLOSED = new PipeConnection("closed", null, null);
+
+	private final BlockingQueue<Connection> mPending = new LinkedBlockingQueue<Connection>();
+	private final AtomicInteger mCount = new AtomicInteger();
+	private final int mCapacity;
+	private volatile boolean mClosed;
+
+	public PipeTransport() {
+		this(DEFAULT_PIPE_CAPACITY);
+	}
+
+	public PipeTransport(int capacity) {
+		mCapacity = capacity;
+	}
+
+	/**
+	 * Connects a new client to this transport.
+	 * @return The client's end of the connection.
+	 * @throws IOException if the transport has been closed.
+	 */
+	public Connection connect() throws IOException {
+		if (mClosed) {
+			throw new IOException("Pipe transport is closed");
+		}
+		BytePipe toServer = new BytePipe(mCapacity);
+		BytePipe toClient = new BytePipe(mCapacity);
+		String name = "pipe-" + mCount.incrementAndGet();
+		mPending.add(new PipeConnection(name, toServer, toClient));
+		return new PipeConnection(name, toClient, toServer);
+	}
+
+	@Override
+	public Connection accept() throws IOException {
+		if (mClosed) {
+			throw new IOException("Pipe transport is closed");
+		}
+		try {
+			Connection connection = mPending.take();
+			if (connection == CLOSED) {
+				mPending.add(CLOSED);
+				throw new IOException("Pipe transport is closed");
+			}
+			return connection;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while accepting");
+		}
+	}
+
+	@Override
+	public String getDescription() {
+		return "pipe://" + System.identityHashCode(this);
+	}
+
+	@Override
+	public void close() {
+		mClosed = true;
+		mPending.add(CLOSED);
+	}
+
+	private static class PipeConnection implements Connection {
+		private final String mName;
+		private final BytePipe mIn, mOut;
+
+		PipeConnection(String name, BytePipe in, BytePipe out) {
+			mName = name;
+			mIn = in;
+			mOut = out;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return mIn.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return mOut.getOutputStream();
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return mName;
+		}
+
+		@Override
+		public String getRemoteName() {
+			return mName;
+		}
+
+		@Override
+		public void close() {
+			mIn.close();
+			mOut.close();
+		}
+	}
+
+	/**
+	 * A bounded, thread-safe ring buffer of bytes with stream views. Unlike
+	 * {@link java.io.PipedInputStream}, it does not care which threads read and write.
+	 */
+	private static class BytePipe {
+		private final byte[] mBuffer;
+		private int mHead, mSize;
+		private boolean mClosed;
+
+		BytePipe(int capacity) {
+			mBuffer = new byte[capacity];
+		}
+
+		synchronized int read(byte[] b, int off, int len) throws IOException {
+			try {
+				while (mSize == 0 && !mClosed) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			if (mSize == 0) {
+				return -1;
+			}
+			int n = Math.min(len, mSize);
+			int first = Math.min(n, mBuffer.length - mHead);
+			System.arraycopy(mBuffer, mHead, b, off, first);
+			System.arraycopy(mBuffer, 0, b, off + first, n - first);
+			mHead = (mHead + n) % mBuffer.length;
+			mSize -= n;
+			notifyAll();
+			return n;
+		}
+
+		synchronized void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				try {
+					while (mSize == mBuffer.length && !mClosed) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				if (mClosed) {
+					throw new IOException("Pipe closed");
+				}
+				int tail = (mHead + mSize) % mBuffer.length;
+				int n = Math.min(len, Math.min(mBuffer.length - mSize, mBuffer.length - tail));
+				System.arraycopy(b, off, mBuffer, tail, n);
+				mSize += n;
+				off += n;
+				len -= n;
+				notifyAll();
+			}
+		}
+
+		synchronized void close() {
+			mClosed = true;
+			notifyAll();
+		}
+
+		InputStream getInputStream() {
+			return new InputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					return len == 0 ? 0 : BytePipe.this.read(b, off, len);
+				}
+
+				@Override
+				public void close() {
+					BytePipe.this.close();
+				}
+			};
+		}
+
+		OutputStream getOutputStream() {
+			return new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					BytePipe.this.write(b, off, len);
+				}
+
+				@Override
+				public void close() {
+					BytePipe.this.close();
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a peer sends bytes that are not a valid {@link Frame}. The connection cannot be
+ * resynchronized afterwards and should be closed.
+ */
+public class ProtocolException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public ProtocolException(String message) {
+		super(message);
+	}
+}
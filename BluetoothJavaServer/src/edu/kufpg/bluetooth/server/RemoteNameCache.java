@@ -0,0 +1,109 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Remembers the friendly names of remote devices, keyed by address. A Bluetooth remote name
+ * request goes over the air and can take hundreds of milliseconds, so sessions never wait for
+ * one: {@link #lookup(Connection)} answers from the cache and, on a miss, resolves the name in
+ * the background for next time. Entries expire after a TTL, and the least recently used
+ * entries are evicted once the cache is full.
+ */
+class RemoteNameCache {
+	private final int mMaxEntries;
+	private final long mTtlMillis;
+	private final Executor mExecutor;
+	private final ServerMetrics mMetrics;
+
+	/** Access-ordered, so iteration starts at the least recently used entry. Guarded by {@code this}. */
+	private final LinkedHashMap<String, CachedName> mEntries;
+
+	/** Addresses with a lookup in progress, so a busy client does not trigger duplicates. */
+	private final Set<String> mPending = new HashSet<String>();
+
+	RemoteNameCache(final int maxEntries, long ttlMillis, Executor executor, ServerMetrics metrics) {
+		mMaxEntries = maxEntries;
+		mTtlMillis = ttlMillis;
+		mExecutor = executor;
+		mMetrics = metrics;
+		mEntries = new LinkedHashMap<String, CachedName>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedName> eldest) {
+				return size() > mMaxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached name of a connection's peer, starting a background lookup if there is
+	 * none (or it has expired). Never blocks on the radio.
+	 * @param connection The connection whose peer to name.
+	 * @return The cached name, or {@code null} if it is not known yet.
+	 */
+	String lookup(final Connection connection) {
+		final String address = connection.getRemoteAddress();
+		synchronized (this) {
+			CachedName entry = mEntries.get(address);
+			if (entry != null && entry.mExpiresAt > System.currentTimeMillis()) {
+				return entry.mName;
+			}
+			if (!mPending.add(address)) {
+				return entry == null ? null : entry.mName;
+			}
+		}
+
+		try {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					resolve(address, connection);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Too many lookups queued; a later connection will try again
+			synchronized (this) {
+				mPending.remove(address);
+			}
+		}
+		return null;
+	}
+
+	private void resolve(String address, Connection connection) {
+		long start = System.nanoTime();
+		String name = null;
+		try {
+			name = connection.getRemoteName();
+			mMetrics.getNameLookupLatency().recordSince(start);
+			if (ServerLog.isEnabled()) {
+				ServerLog.log("Remote device " + address + " is named " + name);
+			}
+		} catch (IOException e) {
+			mMetrics.error("NameLookup" + e.getClass().getSimpleName());
+		} finally {
+			synchronized (this) {
+				mPending.remove(address);
+				if (name != null) {
+					mEntries.put(address, new CachedName(name, System.currentTimeMillis() + mTtlMillis));
+				}
+			}
+		}
+	}
+
+	private static class CachedName {
+		final String mName;
+		final long mExpiresAt;
+
+		CachedName(String name, long expiresAt) {
+			mName = name;
+			mExpiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package edu.kufpg.bluetooth.server;
+
+/**
+ * Maps request {@link Frame Frames} of one message type to responses. Handlers are registered
+ * with {@link BluetoothServer#register(int, RequestHandler)} and are called concurrently from
+ * every session, so they must be thread-safe.
+ * <p>
+ * A handler does not have to answer before it returns: it may hand the request off to another
+ * thread and call the {@link Responder} from there (see {@link AsyncRequestHandler}). Either way,
+ * it must respond exactly once. Stream frames are the exception: a stream handler answers as
+ * its flow control dictates, several times or not at all (see {@link FileTransferHandler}).
+ */
+public interface RequestHandler {
+	/**
+	 * @param request The request received from a client.
+	 * @param responder Where to send the response, now or later.
+	 * @throws Exception if the request cannot be handled; the client receives an
+	 * {@link Frame#TYPE_ERROR} frame instead of a response.
+	 */
+	void handle(Frame request, Responder responder) throws Exception;
+
+	/**
+	 * Delivers a response back to the session the request came from.
+	 */
+	interface Responder {
+		void respond(Frame response);
+
+		/**
+		 * @return An ID that is unique to the session for as long as the server runs, so that
+		 * handlers can tell apart state kept for different clients.
+		 */
+		long getSessionId();
+	}
+}
@@ -0,0 +1,176 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects encoded responses for a blocking session and writes them to the stream in batches,
+ * as dictated by a {@link FlushPolicy}. Safe to use from several threads: responses may be
+ * added by whichever thread produced them, and a write in progress does not block new
+ * responses from being buffered. The two batch buffers come from the {@link BufferPool} and go
+ * back on {@link #close()}. Writes are reported to the session's {@link SessionWatchdog}, which
+ * closes the session if one stalls.
+ */
+class ResponseBatcher {
+	private final OutputStream mOut;
+	private final FlushPolicy mPolicy;
+	private final ScheduledExecutorService mTimer;
+	private final ServerMetrics mMetrics;
+	private final SessionWatchdog mWatchdog;
+
+	/** Held while writing to {@link #mOut}; always taken before the monitor on {@code this}. */
+	private final Object mWriteLock = new Object();
+
+	private byte[] mPending = BufferPool.acquire(1024);
+	private byte[] mSpare = BufferPool.acquire(1024);
+	private int mPendingLength;
+	private boolean mFlushScheduled;
+	private IOException mFailure;
+
+	private final Runnable mScheduledFlush = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (ResponseBatcher.this) {
+				mFlushScheduled = false;
+			}
+			try {
+				flush();
+			} catch (IOException e) {
+				synchronized (ResponseBatcher.this) {
+					mFailure = e;
+				}
+			}
+		}
+	};
+
+	ResponseBatcher(OutputStream out, FlushPolicy policy, ScheduledExecutorService timer, ServerMetrics metrics, SessionWatchdog watchdog) {
+		mOut = out;
+		mPolicy = policy;
+		mTimer = timer;
+		mMetrics = metrics;
+		mWatchdog = watchdog;
+	}
+
+	/**
+	 * Buffers a response, writing the batch out if it has grown past the policy's byte limit.
+	 * @throws IOException if this or an earlier write failed.
+	 */
+	void add(Frame response) throws IOException {
+		boolean full;
+		synchronized (this) {
+			if (mFailure != null) {
+				throw mFailure;
+			}
+			int length = response.getEncodedLength();
+			if (mPendingLength + length > mPending.length) {
+				byte[] grown = BufferPool.acquire(Math.max(mPending.length * 2, mPendingLength + length));
+				System.arraycopy(mPending, 0, grown, 0, mPendingLength);
+				BufferPool.release(mPending);
+				mPending = grown;
+			}
+			mPendingLength += response.encode(mPending, mPendingLength);
+			full = mPendingLength >= mPolicy.getMaxBytes();
+		}
+		if (full) {
+			flush();
+		}
+	}
+
+	/**
+	 * Signals that every response the caller could produce for now has been added. The batch is
+	 * written immediately, or after the policy's delay if it allows one (and the timer is still
+	 * running; once the server has stopped it, batches are written immediately).
+	 * @throws IOException if the write fails.
+	 */
+	void batchComplete() throws IOException {
+		if (mPolicy.getMaxDelayMicros() == 0) {
+			flush();
+			return;
+		}
+		synchronized (this) {
+			if (mFailure != null) {
+				throw mFailure;
+			}
+			if (mPendingLength == 0 || mFlushScheduled) {
+				return;
+			}
+			mFlushScheduled = true;
+		}
+		try {
+			mTimer.schedule(mScheduledFlush, mPolicy.getMaxDelayMicros(), TimeUnit.MICROSECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shutting down; nothing will run the delayed flush
+			synchronized (this) {
+				mFlushScheduled = false;
+			}
+			flush();
+		}
+	}
+
+	/**
+	 * Writes out everything buffered so far in one write.
+	 * @throws IOException if this or an earlier write failed.
+	 */
+	void flush() throws IOException {
+		synchronized (mWriteLock) {
+			byte[] batch;
+			int length;
+			synchronized (this) {
+				if (mFailure != null) {
+					throw mFailure;
+				}
+				if (mPendingLength == 0) {
+					return;
+				}
+				batch = mPending;
+				length = mPendingLength;
+				if (mSpare.length >= batch.length) {
+					mPending = mSpare;
+				} else {
+					BufferPool.release(mSpare);
+					mPending = BufferPool.acquire(batch.length);
+				}
+				mSpare = null;
+				mPendingLength = 0;
+			}
+			mWatchdog.writeStarted();
+			try {
+				mOut.write(batch, 0, length);
+				mOut.flush();
+			} catch (IOException e) {
+				// The stream is broken; fail every later add and flush
+				synchronized (this) {
+					mFailure = e;
+				}
+				throw e;
+			} finally {
+				mWatchdog.writeFinished();
+				synchronized (this) {
+					mSpare = batch;
+				}
+			}
+			mMetrics.bytesOut(length);
+		}
+	}
+
+	/**
+	 * Returns the buffers to the pool, dropping anything not yet flushed. Later calls to
+	 * {@link #add(Frame)} fail.
+	 */
+	void close() {
+		synchronized (mWriteLock) {
+			synchronized (this) {
+				if (mFailure == null) {
+					mFailure = new IOException("Session closed");
+				}
+				BufferPool.release(mPending);
+				BufferPool.release(mSpare);
+				mPending = mSpare = null;
+				mPendingLength = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.UUID;
+import javax.microedition.io.Connector;
+import javax.microedition.io.StreamConnection;
+import javax.microedition.io.StreamConnectionNotifier;
+
+/**
+ * Accepts RFCOMM clients through BlueCove. The notifier, and with it the SDP record that
+ * advertises the service, is opened once and kept until {@link #close()}.
+ */
+public class RfcommTransport implements Transport {
+	/** The well-known Serial Port Profile UUID that the Android client searches for. */
+	public static final String SPP_UUID = "0000110100001000800000805F9B34FB";
+
+	private final String mConnectionString;
+	private final StreamConnectionNotifier mNotifier;
+
+	public RfcommTransport(String serviceName) throws IOException {
+		// Create a UUID for SPP
+		UUID uuid = new UUID(SPP_UUID, false);
+		// Create the service url
+		mConnectionString = "btspp://localhost:" + uuid + ";name=" + serviceName;
+		mNotifier = (StreamConnectionNotifier) Connector.open(mConnectionString);
+	}
+
+	@Override
+	public Connection accept() throws IOException {
+		return new RfcommConnection(mNotifier.acceptAndOpen());
+	}
+
+	@Override
+	public String getDescription() {
+		return mConnectionString;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mNotifier.close();
+	}
+
+	private static class RfcommConnection implements Connection {
+		private final StreamConnection mConnection;
+		private final RemoteDevice mDevice;
+
+		RfcommConnection(StreamConnection connection) throws IOException {
+			mConnection = connection;
+			mDevice = RemoteDevice.getRemoteDevice(connection);
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return mConnection.openInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return mConnection.openOutputStream();
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return mDevice.getBluetoothAddress();
+		}
+
+		@Override
+		public String getRemoteName() throws IOException {
+			return mDevice.getFriendlyName(true);
+		}
+
+		@Override
+		public void close() throws IOException {
+			mConnection.close();
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The server's console log. Messages are queued and printed by a background thread, so
+ * sessions never block on console I/O. If the console cannot keep up, messages are dropped
+ * (and counted) rather than slowing the server down. Call sites should check
+ * {@link #isEnabled()} before building expensive messages.
+ */
+public final class ServerLog {
+	private static final int QUEUE_CAPACITY = 8192;
+
+	private static final BlockingQueue<String> sQueue = new ArrayBlockingQueue<String>(QUEUE_CAPACITY);
+	private static final AtomicLong sDropped = new AtomicLong();
+	private static volatile boolean sEnabled = true;
+	private static volatile PrintStream sOut = System.out;
+
+	static {
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						String message = sQueue.take();
+						long dropped = sDropped.getAndSet(0);
+						if (dropped > 0) {
+							sOut.println("(" + dropped + " log messages dropped)");
+						}
+						sOut.println(message);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "server-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private ServerLog() {}
+
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	/**
+	 * Turns logging on or off. While off, {@link #log(String)} does nothing.
+	 */
+	public static void setEnabled(boolean enabled) {
+		sEnabled = enabled;
+	}
+
+	/**
+	 * Redirects the log, e.g. to a file.
+	 */
+	public static void setOutput(PrintStream out) {
+		sOut = out;
+	}
+
+	public static void log(String message) {
+		if (sEnabled && !sQueue.offer(message)) {
+			sDropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Logs a message even when logging is switched off. For startup banners and metrics dumps.
+	 */
+	public static void always(String message) {
+		if (!sQueue.offer(message)) {
+			sDropped.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package edu.kufpg.bluetooth.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for every stage of a connection: accepting, looking up the
+ * remote name, moving bytes, and answering requests. Every update is a handful of atomic
+ * operations, so the metrics are always on. They can be read over JMX (as
+ * {@code edu.kufpg.bluetooth.server:type=ServerMetrics}) or printed periodically.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+	public static final String OBJECT_NAME = "edu.kufpg.bluetooth.server:type=ServerMetrics";
+
+	private final AtomicLong mAccepted = new AtomicLong();
+	private final AtomicInteger mActiveSessions = new AtomicInteger();
+	private final AtomicLong mBytesIn = new AtomicLong();
+	private final AtomicLong mBytesOut = new AtomicLong();
+	private final AtomicLong mErrors = new AtomicLong();
+	private final ConcurrentMap<String, AtomicLong> mErrorsByType = new ConcurrentHashMap<String, AtomicLong>();
+	private final LatencyHistogram mRequestLatency = new LatencyHistogram();
+	private final LatencyHistogram mNameLookupLatency = new LatencyHistogram();
+
+	/** The shortest span the accept rate is averaged over. */
+	private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	/**
+	 * Accept counts and times the accept rate is measured from: the older snapshot is used, and
+	 * replaced by the newer one once that is a whole window old. Guarded by this.
+	 */
+	private long mRateFromAccepted, mRateFromNanos = System.nanoTime();
+	private long mRateNextAccepted, mRateNextNanos = mRateFromNanos;
+
+	void connectionAccepted() {
+		mAccepted.incrementAndGet();
+	}
+
+	void sessionStarted() {
+		mActiveSessions.incrementAndGet();
+	}
+
+	void sessionEnded() {
+		mActiveSessions.decrementAndGet();
+	}
+
+	void bytesIn(long n) {
+		mBytesIn.addAndGet(n);
+	}
+
+	void bytesOut(long n) {
+		mBytesOut.addAndGet(n);
+	}
+
+	void error(String type) {
+		mErrors.incrementAndGet();
+		AtomicLong count = mErrorsByType.get(type);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = mErrorsByType.putIfAbsent(type, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	void error(Throwable t) {
+		error(t.getClass().getSimpleName());
+	}
+
+	LatencyHistogram getRequestLatency() {
+		return mRequestLatency;
+	}
+
+	LatencyHistogram getNameLookupLatency() {
+		return mNameLookupLatency;
+	}
+
+	/**
+	 * Publishes these metrics on the platform MBean server.
+	 */
+	public void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (JMException e) {
+			ServerLog.always("Could not register metrics MBean: " + e);
+		}
+	}
+
+	/**
+	 * Prints {@link #dump()} to the {@link ServerLog} every {@code periodSeconds} seconds.
+	 */
+	public void scheduleDump(ScheduledExecutorService timer, long periodSeconds) {
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				ServerLog.always(dump());
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public long getAcceptedConnections() {
+		return mAccepted.get();
+	}
+
+	@Override
+	public synchronized double getAcceptRate() {
+		long now = System.nanoTime();
+		long accepted = mAccepted.get();
+		if (now - mRateNextNanos >= RATE_WINDOW_NANOS) {
+			mRateFromAccepted = mRateNextAccepted;
+			mRateFromNanos = mRateNextNanos;
+			mRateNextAccepted = accepted;
+			mRateNextNanos = now;
+		}
+		double seconds = (now - mRateFromNanos) / 1e9;
+		return seconds > 0 ? (accepted - mRateFromAccepted) / seconds : 0;
+	}
+
+	@Override
+	public int getActiveSessions() {
+		return mActiveSessions.get();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return mBytesIn.get();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return mBytesOut.get();
+	}
+
+	@Override
+	public long getRequests() {
+		return mRequestLatency.getCount();
+	}
+
+	@Override
+	public long getRequestLatencyP50Micros() {
+		return micros(mRequestLatency.getPercentileNanos(50));
+	}
+
+	@Override
+	public long getRequestLatencyP99Micros() {
+		return micros(mRequestLatency.getPercentileNanos(99));
+	}
+
+	@Override
+	public long getRequestLatencyP999Micros() {
+		return micros(mRequestLatency.getPercentileNanos(99.9));
+	}
+
+	@Override
+	public long getRequestLatencyMaxMicros() {
+		return micros(mRequestLatency.getMaxNanos());
+	}
+
+	@Override
+	public long getNameLookups() {
+		return mNameLookupLatency.getCount();
+	}
+
+	@Override
+	public long getNameLookupP50Micros() {
+		return micros(mNameLookupLatency.getPercentileNanos(50));
+	}
+
+	@Override
+	public long getNameLookupP99Micros() {
+		return micros(mNameLookupLatency.getPercentileNanos(99));
+	}
+
+	@Override
+	public long getErrors() {
+		return mErrors.get();
+	}
+
+	@Override
+	public String getErrorsByType() {
+		Map<String, Long> sorted = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : mErrorsByType.entrySet()) {
+			sorted.put(entry.getKey(), entry.getValue().get());
+		}
+		String errors = sorted.toString();
+		return errors.substring(1, errors.length() - 1);
+	}
+
+	@Override
+	public String dump() {
+		return "--- server metrics ---"
+				+ "\naccepted: " + getAcceptedConnections() + String.format(" (%.1f/s)", getAcceptRate())
+				+ ", active sessions: " + getActiveSessions()
+				+ "\nbytes in: " + getBytesIn() + ", bytes out: " + getBytesOut()
+				+ "\nrequests: " + mRequestLatency.summarize()
+				+ "\nname lookups: " + mNameLookupLatency.summarize()
+				+ "\nerrors: " + getErrors() + (getErrors() > 0 ? " (" + getErrorsByType() + ")" : "");
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
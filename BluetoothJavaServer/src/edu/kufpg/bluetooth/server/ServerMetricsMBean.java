@@ -0,0 +1,41 @@
+package edu.kufpg.bluetooth.server;
+
+/**
+ * The JMX view of {@link ServerMetrics}. Latencies are in microseconds.
+ */
+public interface ServerMetricsMBean {
+	long getAcceptedConnections();
+
+	/** Connections accepted per second, averaged over at least the last 10 seconds. */
+	double getAcceptRate();
+
+	int getActiveSessions();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	long getRequests();
+
+	long getRequestLatencyP50Micros();
+
+	long getRequestLatencyP99Micros();
+
+	long getRequestLatencyP999Micros();
+
+	long getRequestLatencyMaxMicros();
+
+	long getNameLookups();
+
+	long getNameLookupP50Micros();
+
+	long getNameLookupP99Micros();
+
+	long getErrors();
+
+	/** Error counts by type, e.g. {@code "IOException=3, ProtocolException=1"}. */
+	String getErrorsByType();
+
+	/** The same multi-line report that is printed periodically. */
+	String dump();
+}
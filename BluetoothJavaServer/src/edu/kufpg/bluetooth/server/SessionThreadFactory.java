@@ -0,0 +1,51 @@
+package edu.kufpg.bluetooth.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads that run client sessions. On a JDK with virtual threads (21 and later)
+ * each session gets a cheap virtual thread, since sessions spend nearly all of their time
+ * blocked on Bluetooth I/O. Older JDKs fall back to named daemon platform threads. The
+ * virtual thread builder is looked up reflectively so the server still compiles for Java 6.
+ */
+class SessionThreadFactory implements ThreadFactory {
+	/** Whether this JDK can hand out virtual threads. */
+	static final boolean VIRTUAL_THREADS = virtualFactory("probe") != null;
+
+	private final String mPrefix;
+	private final AtomicInteger mCount = new AtomicInteger();
+	private final ThreadFactory mVirtualFactory;
+
+	SessionThreadFactory(String prefix) {
+		mPrefix = prefix;
+		mVirtualFactory = virtualFactory(prefix);
+	}
+
+	/**
+	 * Equivalent to {@code Thread.ofVirtual().name(prefix + "-", 1).factory()}.
+	 * @return The factory, or {@code null} if this JDK has no virtual threads.
+	 */
+	private static ThreadFactory virtualFactory(String prefix) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method name = builderClass.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, prefix + "-", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		if (mVirtualFactory != null) {
+			return mVirtualFactory.newThread(r);
+		}
+		Thread t = new Thread(r, mPrefix + "-" + mCount.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+}
@@ -0,0 +1,15 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Why a {@link SessionWatchdog} closed a session: its peer stopped answering, stopped reading, or
+ * went idle for longer than the {@link TimeoutPolicy} allows.
+ */
+public class SessionTimeoutException extends InterruptedIOException {
+	private static final long serialVersionUID = 1L;
+
+	public SessionTimeoutException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,133 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces a {@link TimeoutPolicy} on one session. The session reports every frame it receives
+ * and brackets its writes; a timeout on the server's {@link TimerWheel} compares those times
+ * against the policy every {@link TimeoutPolicy#getCheckMillis()} and tells the session when to
+ * ping its peer and when to give up on it. Answers to the server's own pings
+ * ({@link Frame#TYPE_PONG}) and {@link Frame#TYPE_CREDIT} frames prove the peer is alive but do not
+ * keep the session from idling out. A {@link Frame#TYPE_PING} from the peer does: it is how a
+ * client keeps a connection it wants warm, and closing that connection would only make the
+ * client redial it.
+ */
+final class SessionWatchdog {
+	/**
+	 * Acts for the watchdog. Called on the wheel's thread, so both must return quickly.
+	 */
+	interface Session {
+		/** Sends the peer a {@link Frame#TYPE_PING}. */
+		void ping();
+
+		/** Closes the session, whose peer is gone or idle. */
+		void timedOut(IOException reason);
+	}
+
+	private final TimerWheel mWheel;
+	private final TimeoutPolicy mPolicy;
+	private final Session mSession;
+
+	private volatile long mLastReceived = now();
+	private volatile long mLastActive = mLastReceived;
+	/** When the write in progress started or last made progress, or 0 if none is. */
+	private volatile long mWriteStarted;
+	private volatile boolean mPinged;
+	private volatile boolean mStopped;
+	private TimerWheel.Timeout mTimeout;
+
+	private final Runnable mCheck = new Runnable() {
+		@Override
+		public void run() {
+			check();
+		}
+	};
+
+	SessionWatchdog(TimerWheel wheel, TimeoutPolicy policy, Session session) {
+		mWheel = wheel;
+		mPolicy = policy;
+		mSession = session;
+	}
+
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	/**
+	 * @return Whether the frame is just bookkeeping the peer would send anyway. Its own pings are
+	 * not; see the class comment.
+	 */
+	private static boolean isHeartbeat(Frame frame) {
+		int type = frame.getType();
+		return type == Frame.TYPE_PONG || type == Frame.TYPE_CREDIT;
+	}
+
+	/**
+	 * Starts checking, unless the policy turns every timeout off.
+	 */
+	synchronized void start() {
+		long period = mPolicy.getCheckMillis();
+		if (period > 0 && !mStopped) {
+			mTimeout = mWheel.schedule(mCheck, period);
+		}
+	}
+
+	/**
+	 * Stops checking. Call when the session ends for any reason.
+	 */
+	synchronized void stop() {
+		mStopped = true;
+		if (mTimeout != null) {
+			mTimeout.cancel();
+			mTimeout = null;
+		}
+	}
+
+	void received(Frame frame) {
+		long now = now();
+		mLastReceived = now;
+		mPinged = false;
+		if (!isHeartbeat(frame)) {
+			mLastActive = now;
+		}
+	}
+
+	/**
+	 * Marks the start of a write, or progress in one that is still going.
+	 */
+	void writeStarted() {
+		mWriteStarted = now();
+	}
+
+	void writeFinished() {
+		mWriteStarted = 0;
+	}
+
+	private void check() {
+		long now = now();
+		long writeStarted = mWriteStarted;
+		long silent = now - mLastReceived;
+		IOException reason = null;
+		if (mPolicy.getWriteMillis() > 0 && writeStarted != 0 && now - writeStarted >= mPolicy.getWriteMillis()) {
+			reason = new SessionTimeoutException("Write stalled for " + (now - writeStarted) + " ms");
+		} else if (mPolicy.getReadMillis() > 0 && silent >= 2 * mPolicy.getReadMillis()) {
+			reason = new SessionTimeoutException("Nothing received for " + silent + " ms");
+		} else if (mPolicy.getIdleMillis() > 0 && now - mLastActive >= mPolicy.getIdleMillis()) {
+			reason = new SessionTimeoutException("Idle for " + (now - mLastActive) + " ms");
+		} else if (mPolicy.getReadMillis() > 0 && silent >= mPolicy.getReadMillis() && !mPinged) {
+			mPinged = true;
+			mSession.ping();
+		}
+		if (reason != null) {
+			stop();
+			mSession.timedOut(reason);
+			return;
+		}
+		synchronized (this) {
+			if (!mStopped) {
+				mTimeout = mWheel.schedule(mCheck, mPolicy.getCheckMillis());
+			}
+		}
+	}
+}
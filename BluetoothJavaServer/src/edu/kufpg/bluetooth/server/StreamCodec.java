@@ -0,0 +1,123 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Payload layouts for the file transfer frames. A transfer is a stream of frames that all carry
+ * the stream's ID as their request ID:
+ *
+ * <pre>
+ * STREAM_OPEN  mode (1 byte), offset (8), window (4), file name (UTF-8, rest of payload)
+ * STREAM_DATA  offset (8), chunk bytes (rest of payload)
+ * STREAM_ACK   offset received so far (8), window (4)
+ * STREAM_END   total length (8)
+ * </pre>
+ *
+ * <b>Uploads</b> ({@link #MODE_PUT}): the client opens the stream with the offset it wants to
+ * start at, or {@link #RESUME} to continue wherever the server's copy ends. The server answers
+ * with an ACK naming the offset to send from. The client then sends DATA, never more than
+ * {@code window} bytes past the last acknowledged offset, and finishes with END, which the
+ * server answers with a {@link Frame#TYPE_RESPONSE}.
+ * <p>
+ * <b>Downloads</b> ({@link #MODE_GET}): the client opens the stream with the offset it already
+ * has and the window it can buffer. The server sends DATA up to the window and waits for ACKs
+ * before sending more, then sends END.
+ */
+public final class StreamCodec {
+	public static final int MODE_PUT = 1;
+	public static final int MODE_GET = 2;
+
+	/** An upload offset asking the server to continue from the end of its partial copy. */
+	public static final long RESUME = -1;
+
+	private static final String CHARSET = "UTF-8";
+
+	private StreamCodec() {}
+
+	public static byte[] open(int mode, long offset, int window, String name) {
+		byte[] nameBytes = toBytes(name);
+		return ByteBuffer.allocate(OPEN_HEADER_LENGTH + nameBytes.length).put((byte) mode).putLong(offset)
+				.putInt(window).put(nameBytes).array();
+	}
+
+	public static int openMode(byte[] payload) {
+		return payload[0];
+	}
+
+	public static long openOffset(byte[] payload) {
+		return ByteBuffer.wrap(payload).getLong(1);
+	}
+
+	public static int openWindow(byte[] payload) {
+		return ByteBuffer.wrap(payload).getInt(9);
+	}
+
+	public static String openName(byte[] payload) {
+		try {
+			return new String(payload, OPEN_HEADER_LENGTH, payload.length - OPEN_HEADER_LENGTH, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * @return A DATA payload holding {@code len} bytes of {@code b} starting at {@code off}.
+	 */
+	public static byte[] data(long offset, byte[] b, int off, int len) {
+		byte[] payload = new byte[8 + len];
+		ByteBuffer.wrap(payload).putLong(offset);
+		System.arraycopy(b, off, payload, 8, len);
+		return payload;
+	}
+
+	/**
+	 * @return A DATA payload holding the remaining bytes of {@code chunk}, which are consumed.
+	 */
+	public static byte[] data(long offset, ByteBuffer chunk) {
+		byte[] payload = new byte[8 + chunk.remaining()];
+		ByteBuffer.wrap(payload).putLong(offset);
+		chunk.get(payload, 8, payload.length - 8);
+		return payload;
+	}
+
+	public static long dataOffset(byte[] payload) {
+		return ByteBuffer.wrap(payload).getLong(0);
+	}
+
+	/** Where a DATA payload's chunk bytes start. */
+	public static final int DATA_HEADER_LENGTH = 8;
+
+	/** Where an OPEN payload's file name starts. */
+	public static final int OPEN_HEADER_LENGTH = 13;
+	public static final int ACK_LENGTH = 12;
+	public static final int END_LENGTH = 8;
+
+	public static byte[] ack(long offset, int window) {
+		return ByteBuffer.allocate(ACK_LENGTH).putLong(offset).putInt(window).array();
+	}
+
+	public static long ackOffset(byte[] payload) {
+		return ByteBuffer.wrap(payload).getLong(0);
+	}
+
+	public static int ackWindow(byte[] payload) {
+		return ByteBuffer.wrap(payload).getInt(8);
+	}
+
+	public static byte[] end(long length) {
+		return ByteBuffer.allocate(END_LENGTH).putLong(length).array();
+	}
+
+	public static long endLength(byte[] payload) {
+		return ByteBuffer.wrap(payload).getLong(0);
+	}
+
+	private static byte[] toBytes(String text) {
+		try {
+			return text.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
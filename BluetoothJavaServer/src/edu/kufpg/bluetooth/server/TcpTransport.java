@@ -0,0 +1,142 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Accepts clients over TCP, using a blocking NIO {@link ServerSocketChannel}. Useful for
+ * measuring the server on machines without a Bluetooth adapter, and for bridging TCP clients
+ * to the same request logic in production.
+ */
+public class TcpTransport implements Transport {
+	private final ServerSocketChannel mServerChannel;
+
+	public TcpTransport(SocketAddress bindAddress) throws IOException {
+		mServerChannel = ServerSocketChannel.open();
+		mServerChannel.socket().setReuseAddress(true);
+		mServerChannel.socket().bind(bindAddress, 128);
+	}
+
+	public TcpTransport(int port) throws IOException {
+		this(new InetSocketAddress(port));
+	}
+
+	/**
+	 * Opens a client connection to a {@code TcpTransport}, e.g., for load generation.
+	 * @param address The address the server is bound to.
+	 * @return The client's end of the connection.
+	 * @throws IOException if the connection cannot be made.
+	 */
+	public static Connection connect(SocketAddress address) throws IOException {
+		SocketChannel channel = SocketChannel.open(address);
+		channel.socket().setTcpNoDelay(true);
+		return new TcpConnection(channel);
+	}
+
+	@Override
+	public Connection accept() throws IOException {
+		SocketChannel channel = mServerChannel.accept();
+		channel.socket().setTcpNoDelay(true);
+		return new TcpConnection(channel);
+	}
+
+	/**
+	 * @return The address this transport is actually bound to (useful after binding to port 0).
+	 */
+	public InetSocketAddress getLocalAddress() {
+		return (InetSocketAddress) mServerChannel.socket().getLocalSocketAddress();
+	}
+
+	@Override
+	public String getDescription() {
+		return "tcp:/" + getLocalAddress();
+	}
+
+	@Override
+	public void close() throws IOException {
+		mServerChannel.close();
+	}
+
+	private static class TcpConnection implements Connection {
+		private final SocketChannel mChannel;
+		private final InputStream mIn;
+		private final OutputStream mOut;
+
+		TcpConnection(SocketChannel channel) {
+			mChannel = channel;
+			// Channels.newInputStream() and newOutputStream() share the channel's blocking
+			// lock, so a thread blocked reading would stall every write. These adapters let
+			// reads and writes proceed independently.
+			mIn = new InputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					if (len == 0) {
+						return 0;
+					}
+					return mChannel.read(ByteBuffer.wrap(b, off, len));
+				}
+
+				@Override
+				public void close() throws IOException {
+					mChannel.close();
+				}
+			};
+			mOut = new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+					while (buffer.hasRemaining()) {
+						mChannel.write(buffer);
+					}
+				}
+
+				@Override
+				public void close() throws IOException {
+					mChannel.close();
+				}
+			};
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return mIn;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return mOut;
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return String.valueOf(mChannel.socket().getRemoteSocketAddress());
+		}
+
+		@Override
+		public String getRemoteName() {
+			return getRemoteAddress();
+		}
+
+		@Override
+		public void close() throws IOException {
+			mChannel.close();
+		}
+	}
+}
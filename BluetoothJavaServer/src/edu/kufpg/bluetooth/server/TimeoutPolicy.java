@@ -0,0 +1,80 @@
+package edu.kufpg.bluetooth.server;
+
+/**
+ * Decides when a session's peer is given up on, so that a phone that walks out of range does
+ * not hold its session (and worker thread or buffers) forever. Each timeout is in milliseconds;
+ * {@code 0} turns it off.
+ * <ul>
+ * <li>Read: a session that has received nothing for this long is sent a {@link Frame#TYPE_PING};
+ * if nothing arrives for as long again, the peer is taken to be gone.</li>
+ * <li>Write: a write that makes no progress for this long means the peer stopped reading.</li>
+ * <li>Idle: a session whose peer has sent nothing but answers to the server's pings (and credit)
+ * for this long is closed to free its resources, though the peer is still there. Pings the peer
+ * sends itself count as use, so a connection a client keeps warm is not idled out.</li>
+ * </ul>
+ * The checks run on a coarse {@link TimerWheel}, so a dead peer is noticed within about a
+ * quarter of the shortest timeout after it expires.
+ */
+public final class TimeoutPolicy {
+	/** Pings after 10 s of silence, gives up after 20 s or a 10 s stalled write, idles out after 5 min. */
+	public static final TimeoutPolicy DEFAULT = new TimeoutPolicy(10000, 10000, 300000);
+
+	/** Never times out, as sessions did before timeouts existed. */
+	public static final TimeoutPolicy NONE = new TimeoutPolicy(0, 0, 0);
+
+	private final long mReadMillis;
+	private final long mWriteMillis;
+	private final long mIdleMillis;
+
+	public TimeoutPolicy(long readMillis, long writeMillis, long idleMillis) {
+		if (readMillis < 0 || writeMillis < 0 || idleMillis < 0) {
+			throw new IllegalArgumentException("Bad timeout policy: read " + readMillis + " ms, write "
+					+ writeMillis + " ms, idle " + idleMillis + " ms");
+		}
+		mReadMillis = readMillis;
+		mWriteMillis = writeMillis;
+		mIdleMillis = idleMillis;
+	}
+
+	/**
+	 * Parses a policy written as {@code <readMillis>[,<writeMillis>[,<idleMillis>]]}.
+	 */
+	public static TimeoutPolicy parse(String spec) {
+		String[] parts = spec.split(",");
+		long read = Long.parseLong(parts[0]);
+		long write = parts.length > 1 ? Long.parseLong(parts[1]) : DEFAULT.mWriteMillis;
+		long idle = parts.length > 2 ? Long.parseLong(parts[2]) : DEFAULT.mIdleMillis;
+		return new TimeoutPolicy(read, write, idle);
+	}
+
+	public long getReadMillis() {
+		return mReadMillis;
+	}
+
+	public long getWriteMillis() {
+		return mWriteMillis;
+	}
+
+	public long getIdleMillis() {
+		return mIdleMillis;
+	}
+
+	/**
+	 * @return How often a session is checked: a quarter of the shortest timeout, or 0 if every
+	 * timeout is off.
+	 */
+	long getCheckMillis() {
+		long shortest = Long.MAX_VALUE;
+		for (long timeout : new long[] { mReadMillis, mWriteMillis, mIdleMillis }) {
+			if (timeout > 0) {
+				shortest = Math.min(shortest, timeout);
+			}
+		}
+		return shortest == Long.MAX_VALUE ? 0 : Math.max(1, shortest / 4);
+	}
+
+	@Override
+	public String toString() {
+		return "read " + mReadMillis + " ms / write " + mWriteMillis + " ms / idle " + mIdleMillis + " ms";
+	}
+}
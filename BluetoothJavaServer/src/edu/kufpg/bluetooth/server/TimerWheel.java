@@ -0,0 +1,160 @@
+package edu.kufpg.bluetooth.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel: one thread that runs any number of coarse timeouts, each of which costs
+ * constant time to schedule and cancel. Time is divided into ticks of {@code tickMillis}; a
+ * timeout lands in the bucket for its tick, modulo the wheel's size, along with how many turns
+ * of the wheel are left before it is due. Each tick visits just one bucket. Timeouts therefore
+ * fire up to one tick late, which is plenty for session timeouts of several seconds, and a
+ * server with thousands of sessions still has a single timer thread.
+ * <p>
+ * Tasks run on the wheel's thread and must return quickly; anything that may block (such as
+ * writing to a session) should be handed to another thread.
+ */
+final class TimerWheel {
+	private final long mTickNanos;
+	private final Entry[] mBuckets;
+	private final Queue<Entry> mAdded = new ConcurrentLinkedQueue<Entry>();
+	private final Thread mThread;
+	private final long mStart = System.nanoTime();
+	private volatile boolean mStopped;
+
+	/** The next tick to run. Only touched by the wheel's thread. */
+	private long mTick;
+
+	/**
+	 * A scheduled task, which can be cancelled until it runs.
+	 */
+	static final class Timeout {
+		private final Runnable mTask;
+		private final long mDeadline;
+		private volatile boolean mCancelled;
+
+		Timeout(Runnable task, long deadline) {
+			mTask = task;
+			mDeadline = deadline;
+		}
+
+		/**
+		 * Keeps the task from running, if it has not started yet. The entry itself is dropped
+		 * when its bucket next comes around.
+		 */
+		void cancel() {
+			mCancelled = true;
+		}
+	}
+
+	/** A link in a bucket's list. */
+	private static final class Entry {
+		final Timeout mTimeout;
+		long mRounds;
+		Entry mNext;
+
+		Entry(Timeout timeout) {
+			mTimeout = timeout;
+		}
+	}
+
+	/**
+	 * Creates the wheel and starts its thread.
+	 * @param tickMillis The wheel's resolution.
+	 * @param buckets How many ticks make up one turn of the wheel. Timeouts further out than
+	 * one turn simply wait for more turns.
+	 */
+	TimerWheel(long tickMillis, int buckets, ThreadFactory threadFactory) {
+		if (tickMillis < 1 || buckets < 1) {
+			throw new IllegalArgumentException("Bad timer wheel: " + tickMillis + " ms ticks, " + buckets + " buckets");
+		}
+		mTickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		mBuckets = new Entry[buckets];
+		mThread = threadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				turn();
+			}
+		});
+		mThread.start();
+	}
+
+	/**
+	 * Runs the task on the wheel's thread after at least {@code delayMillis}.
+	 */
+	Timeout schedule(Runnable task, long delayMillis) {
+		Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+		mAdded.add(new Entry(timeout));
+		return timeout;
+	}
+
+	/**
+	 * Stops the wheel's thread. Timeouts not yet run never will be.
+	 */
+	void stop() {
+		mStopped = true;
+		mThread.interrupt();
+	}
+
+	private void turn() {
+		while (!mStopped) {
+			long wait = mStart + (mTick + 1) * mTickNanos - System.nanoTime();
+			if (wait > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					continue;
+				}
+			}
+			addPending();
+			expire(mBuckets[(int) (mTick % mBuckets.length)]);
+			mTick++;
+		}
+	}
+
+	/**
+	 * Moves newly scheduled timeouts into their buckets. One that is already due goes in the
+	 * bucket about to run.
+	 */
+	private void addPending() {
+		Entry entry;
+		while ((entry = mAdded.poll()) != null) {
+			if (entry.mTimeout.mCancelled) {
+				continue;
+			}
+			long ticks = Math.max(mTick, (entry.mTimeout.mDeadline - mStart + mTickNanos - 1) / mTickNanos - 1);
+			entry.mRounds = (ticks - mTick) / mBuckets.length;
+			int index = (int) (ticks % mBuckets.length);
+			entry.mNext = mBuckets[index];
+			mBuckets[index] = entry;
+		}
+	}
+
+	/**
+	 * Runs the timeouts in the bucket that are due this turn, and drops cancelled ones.
+	 */
+	private void expire(Entry head) {
+		int index = (int) (mTick % mBuckets.length);
+		Entry previous = null;
+		for (Entry entry = head; entry != null; entry = entry.mNext) {
+			boolean remove = entry.mTimeout.mCancelled;
+			if (!remove && entry.mRounds-- <= 0) {
+				remove = true;
+				try {
+					entry.mTimeout.mTask.run();
+				} catch (RuntimeException e) {
+					ServerLog.always("Timer task failed: " + e);
+				}
+			}
+			if (!remove) {
+				previous = entry;
+			} else if (previous == null) {
+				mBuckets[index] = entry.mNext;
+			} else {
+				previous.mNext = entry.mNext;
+			}
+		}
+	}
+}
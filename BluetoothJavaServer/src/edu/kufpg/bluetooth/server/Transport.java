@@ -0,0 +1,24 @@
+package edu.kufpg.bluetooth.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A listening endpoint that {@link BluetoothServer} accepts clients from. The server's
+ * request/response logic only ever sees {@link Connection Connections}, so the same code runs
+ * over RFCOMM, TCP, or an in-process pipe.
+ */
+public interface Transport extends Closeable {
+	/**
+	 * Blocks until a client connects.
+	 * @return The new client's connection.
+	 * @throws IOException if the transport fails or is closed while waiting.
+	 */
+	Connection accept() throws IOException;
+
+	/**
+	 * @return A short human-readable description of where this transport listens
+	 * (e.g., {@code "tcp://0.0.0.0:5555"}).
+	 */
+	String getDescription();
+}
@@ -1,8 +1,11 @@
 {-# LANGUAGE ForeignFunctionInterface #-}
 module BluezServer where
 import Foreign.C
+import Foreign.Ptr
 
 -- foreign import ccall "run_server" run_server :: IO ()
 foreign import ccall "init_server" init_server :: IO CInt
-foreign import ccall "read_server" read_server :: CInt -> CString
+-- | Blocks in epoll until some client's request arrives. A safe call, so that under the threaded
+-- runtime other Haskell threads keep running while the server waits.
+foreign import ccall safe "read_server" read_server :: CInt -> Ptr CInt -> IO CString
 foreign import ccall "write_server" write_server :: CInt -> CString -> IO ()
\ No newline at end of file
@@ -1,20 +1,33 @@
 module ServerEx where
 import qualified BluezServer
 import Foreign.C
+import Foreign.Marshal.Alloc (alloca)
+import Foreign.Ptr (Ptr, nullPtr)
+import Foreign.Storable (peek)
 
-main = do
-  client <- BluezServer.init_server
-  loopServer client
-  
-loopServer :: CInt -> IO ()
-loopServer client = do
-  message <- peekCString $ BluezServer.read_server client
-  response <- newCString $ hermitMagic message
-  if (not $ null message) then do
-    BluezServer.write_server client response
-    loopServer client
+main = serve hermitMagic
+
+-- | Serves every client that connects, answering each message with the given handler. Requests
+-- from all clients arrive through one loop, in turn, so an idle or slow client never holds up
+-- the others. Plug in any other String -> IO String function to run a different workload
+-- behind the server.
+serve :: (String -> IO String) -> IO ()
+serve handler = do
+  server <- BluezServer.init_server
+  if server < 0 then return ()
+                else alloca $ loopServer handler server
+
+loopServer :: (String -> IO String) -> CInt -> Ptr CInt -> IO ()
+loopServer handler server clientPtr = do
+  request <- BluezServer.read_server server clientPtr
+  if request /= nullPtr then do
+    client <- peek clientPtr
+    message <- peekCString request
+    response <- handler message
+    withCString response $ BluezServer.write_server client
+    loopServer handler server clientPtr
 			  else return ()
 
-hermitMagic :: [Char] -> [Char]
+hermitMagic :: [Char] -> IO [Char]
 -- Replace this with some other crazy string manipulation
-hermitMagic str = str ++ " (don't forget Haskell!)"
\ No newline at end of file
+hermitMagic str = return $ str ++ " (don't forget Haskell!)"
\ No newline at end of file
@@ -1,14 +1,29 @@
 #include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdint.h>
 #include <unistd.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <arpa/inet.h>
+#include <sys/epoll.h>
 #include <sys/socket.h>
+#include "bluez_server.h"
+#ifdef TEST_TRANSPORT
+#include <netinet/in.h>
+#include <sys/un.h>
+#else
 #include <bluetooth/bluetooth.h>
 #include <bluetooth/sdp.h>
 #include <bluetooth/sdp_lib.h>
 #include <bluetooth/rfcomm.h>
+#endif
 
 /* To compile this, use the following Bash command:
 * gcc -I/usr/include/glib-2.0/ -I/usr/lib/glib-2.0/include -o server-with-haskell server-with-haskell.c -lbluetooth
 *
+* (or "make server_ex_test" for a build that listens on TCP instead; see bluez_server.h)
+*
 * Adapted from http://www.btessentials.com/examples/examples.html, under the following license:
 *
 * Copyright (c) 2007 Albert Huang & Larry Rudolph
@@ -25,6 +40,7 @@
 * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 */
 
+#ifndef TEST_TRANSPORT
 /* Allows this service to be discovered when running sdptool. For example, you can find this service
 * after starting it by running
 *
@@ -121,12 +137,104 @@ sdp_session_t *register_service(uint8_t rfcomm_channel) {
 
 	return session;
 }
+#endif
 
-int init_server() {
-	int port = 3, result, sock, client, bytes_read, bytes_sent;
-	struct sockaddr_rc loc_addr = { 0 }, rem_addr = { 0 };
-	char buffer[1024] = { 0 };
-	socklen_t opt = sizeof(rem_addr);
+#define LISTEN_BACKLOG 128
+#define MAX_EVENTS 64
+/* How much more room a client's read buffer gets before each read(). */
+#define READ_CHUNK 4096
+/* A client with more unsent output than this is not read from until it catches up. */
+#define MAX_PENDING_OUTPUT (256 * 1024)
+
+/* One connected client: its socket, the bytes it has sent that have not been parsed yet, and the
+ * responses the socket has not taken yet. */
+struct client {
+	int fd;
+	char *rbuf;
+	size_t rlen, rcap;
+	char *wbuf;
+	size_t wlen, woff, wcap;
+	uint32_t events;          /* what epoll is watching for */
+	uint32_t request_id;      /* the request most recently returned by read_server() */
+	uint8_t request_flags;
+	int ready;                /* on the ready list */
+	int hung_up;              /* sent EOF; buffered requests are still answered */
+	int closed;               /* failed; dropped at the next chance */
+	struct client *next_ready;
+};
+
+/* Every connected client, indexed by socket descriptor. */
+static struct client **clients = NULL;
+static int clients_cap = 0;
+
+/* Clients whose read buffers may hold complete frames, oldest first. */
+static struct client *ready_head = NULL, *ready_tail = NULL;
+
+static int epoll_fd = -1;
+static int listen_fd = -1;
+
+/* The payload most recently returned by read_server(); freed by the next call. */
+static char *returned_payload = NULL;
+
+static int set_nonblocking(int fd) {
+	int flags = fcntl(fd, F_GETFL, 0);
+	return flags < 0 ? -1 : fcntl(fd, F_SETFL, flags | O_NONBLOCK);
+}
+
+#if defined(TEST_TCP_PORT)
+/* Opens the listening test socket on TEST_TCP_PORT of the loopback interface. */
+static int open_listener(int port) {
+	int sock, one = 1;
+	struct sockaddr_in loc_addr = { 0 };
+
+	loc_addr.sin_family = AF_INET;
+	loc_addr.sin_port = htons(TEST_TCP_PORT);
+	loc_addr.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+	(void) port;
+
+	sock = socket(AF_INET, SOCK_STREAM, 0);
+	if (sock < 0) {
+		perror("socket");
+		return -1;
+	}
+	setsockopt(sock, SOL_SOCKET, SO_REUSEADDR, &one, sizeof(one));
+	if (bind(sock, (struct sockaddr *)&loc_addr, sizeof(loc_addr)) < 0 || listen(sock, LISTEN_BACKLOG) < 0) {
+		perror("listening on TCP");
+		close(sock);
+		return -1;
+	}
+	printf("listening on 127.0.0.1:%d (test transport, no SDP)\n", TEST_TCP_PORT);
+	return sock;
+}
+#elif defined(TEST_UNIX_PATH)
+/* Opens the listening test socket at TEST_UNIX_PATH, replacing any stale socket file there. */
+static int open_listener(int port) {
+	int sock;
+	struct sockaddr_un loc_addr = { 0 };
+
+	loc_addr.sun_family = AF_UNIX;
+	strncpy(loc_addr.sun_path, TEST_UNIX_PATH, sizeof(loc_addr.sun_path) - 1);
+	(void) port;
+
+	sock = socket(AF_UNIX, SOCK_STREAM, 0);
+	if (sock < 0) {
+		perror("socket");
+		return -1;
+	}
+	unlink(loc_addr.sun_path);
+	if (bind(sock, (struct sockaddr *)&loc_addr, sizeof(loc_addr)) < 0 || listen(sock, LISTEN_BACKLOG) < 0) {
+		perror("listening on " TEST_UNIX_PATH);
+		close(sock);
+		return -1;
+	}
+	printf("listening on %s (test transport, no SDP)\n", loc_addr.sun_path);
+	return sock;
+}
+#else
+/* Opens the listening RFCOMM socket on the given channel and advertises it over SDP. */
+static int open_listener(int port) {
+	int sock, result;
+	struct sockaddr_rc loc_addr = { 0 };
 
 	// local bluetooth adapter
 	loc_addr.rc_family = AF_BLUETOOTH;
@@ -134,54 +242,422 @@ int init_server() {
 	loc_addr.rc_channel = (uint8_t) port;
 
 	// register service
-	sdp_session_t *session = register_service(port);
+	register_service(port);
 
 	// allocate socket
 	sock = socket(AF_BLUETOOTH, SOCK_STREAM, BTPROTO_RFCOMM);
 	printf("socket() returned %d\n", sock);
+	if (sock < 0) {
+		return -1;
+	}
 
 	// bind socket to port 3 of the first available
 	result = bind(sock, (struct sockaddr *)&loc_addr, sizeof(loc_addr));
 	printf("bind() on channel %d returned %d\n", port, result);
 
 	// put socket into listening mode
-	result = listen(sock, 1);
-	printf("listen() returned %d\n", result);
+	if (result == 0) {
+		result = listen(sock, LISTEN_BACKLOG);
+		printf("listen() returned %d\n", result);
+	}
+	if (result != 0) {
+		close(sock);
+		return -1;
+	}
+	return sock;
+}
+#endif
+
+int init_server() {
+	struct epoll_event event = { 0 };
 
-	//sdpRegisterL2cap(port);
+	listen_fd = open_listener(3);
+	if (listen_fd < 0 || set_nonblocking(listen_fd) < 0) {
+		return -1;
+	}
+	epoll_fd = epoll_create(MAX_EVENTS);
+	if (epoll_fd < 0) {
+		perror("epoll_create");
+		return -1;
+	}
+	event.events = EPOLLIN;
+	event.data.fd = listen_fd;
+	if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, listen_fd, &event) < 0) {
+		perror("epoll_ctl");
+		return -1;
+	}
+	return listen_fd;
+}
+
+/* Computes the CRC-32 (IEEE 802.3, as in java.util.zip.CRC32) used by FRAME_FLAG_CHECKSUM. */
+uint32_t frame_crc32(const unsigned char *buf, size_t len) {
+	uint32_t crc = 0xFFFFFFFF;
+	size_t i;
+	int bit;
+	for (i = 0; i < len; i++) {
+		crc ^= buf[i];
+		for (bit = 0; bit < 8; bit++) {
+			crc = (crc >> 1) ^ (0xEDB88320 & -(crc & 1));
+		}
+	}
+	return ~crc;
+}
+
+/* Parses one frame from the start of buf. Returns the number of bytes it took up, 0 if buf does
+ * not hold a whole frame yet, or -1 if the frame is malformed. On success, f->payload is a
+ * NUL-terminated copy owned by the caller. */
+int parse_frame(const unsigned char *buf, size_t len, struct frame *f) {
+	uint32_t value;
+	size_t total;
+
+	if (len < FRAME_HEADER_LENGTH) {
+		return 0;
+	}
+	if (buf[0] != FRAME_VERSION) {
+		fprintf(stderr, "unsupported protocol version %d\n", buf[0]);
+		return -1;
+	}
+	f->type = buf[1];
+	f->flags = buf[2];
+	memcpy(&value, buf + 4, 4);
+	f->request_id = ntohl(value);
+	memcpy(&value, buf + 8, 4);
+	f->length = ntohl(value);
+	if (f->length > FRAME_MAX_PAYLOAD) {
+		fprintf(stderr, "bad payload length %u\n", f->length);
+		return -1;
+	}
+	total = FRAME_HEADER_LENGTH + f->length + ((f->flags & FRAME_FLAG_CHECKSUM) ? 4 : 0);
+	if (len < total) {
+		return 0;
+	}
+
+	if (f->flags & FRAME_FLAG_CHECKSUM) {
+		memcpy(&value, buf + FRAME_HEADER_LENGTH + f->length, 4);
+		if (ntohl(value) != frame_crc32(buf + FRAME_HEADER_LENGTH, f->length)) {
+			fprintf(stderr, "checksum mismatch in request %u\n", f->request_id);
+			return -1;
+		}
+	}
+	f->payload = malloc(f->length + 1);
+	if (f->payload == NULL) {
+		return -1;
+	}
+	memcpy(f->payload, buf + FRAME_HEADER_LENGTH, f->length);
+	f->payload[f->length] = '\0';
+	return (int) total;
+}
 
-	// accept one connection
-	printf("calling accept()\n");
-	client = accept(sock, (struct sockaddr *)&rem_addr, &opt);
-	printf("accept() returned %d\n", client);
+/* Makes room for at least extra more bytes after the first len in a growable buffer. */
+static int reserve(char **buf, size_t *cap, size_t len, size_t extra) {
+	size_t needed = len + extra, new_cap = *cap ? *cap : 1024;
+	char *grown;
+	if (needed <= *cap) {
+		return 0;
+	}
+	while (new_cap < needed) {
+		new_cap *= 2;
+	}
+	grown = realloc(*buf, new_cap);
+	if (grown == NULL) {
+		return -1;
+	}
+	*buf = grown;
+	*cap = new_cap;
+	return 0;
+}
 
-	ba2str(&rem_addr.rc_bdaddr, buffer);
-	fprintf(stderr, "accepted connection from %s\n", buffer);
-	memset(buffer, 0, sizeof(buffer));
+/* Appends a frame to the client's write buffer; flush_client() sends it. */
+static int queue_frame(struct client *c, uint8_t type, uint8_t flags, uint32_t request_id,
+                       const char *payload, uint32_t length) {
+	unsigned char *out;
+	uint32_t value;
+	size_t total = FRAME_HEADER_LENGTH + length + ((flags & FRAME_FLAG_CHECKSUM) ? 4 : 0);
 
-	return client;
+	if (reserve(&c->wbuf, &c->wcap, c->wlen, total) < 0) {
+		return -1;
+	}
+	out = (unsigned char *) c->wbuf + c->wlen;
+	out[0] = FRAME_VERSION;
+	out[1] = type;
+	out[2] = flags;
+	out[3] = 0;
+	value = htonl(request_id);
+	memcpy(out + 4, &value, 4);
+	value = htonl(length);
+	memcpy(out + 8, &value, 4);
+	memcpy(out + FRAME_HEADER_LENGTH, payload, length);
+	if (flags & FRAME_FLAG_CHECKSUM) {
+		value = htonl(frame_crc32((const unsigned char *) payload, length));
+		memcpy(out + FRAME_HEADER_LENGTH + length, &value, 4);
+	}
+	c->wlen += total;
+	return 0;
 }
 
-char *read_server(int client) {
-	// read data from the client
-	char input[1024] = { 0 };
-	int bytes_read;
-	bytes_read = read(client, input, sizeof(input));
-	if (bytes_read > 0) {
-		printf("received [%s]\n", input);
-		return input;
+static void mark_ready(struct client *c) {
+	if (c->ready) {
+		return;
+	}
+	c->ready = 1;
+	c->next_ready = NULL;
+	if (ready_tail) {
+		ready_tail->next_ready = c;
 	} else {
-		return "";
+		ready_head = c;
+	}
+	ready_tail = c;
+}
+
+static struct client *next_ready(void) {
+	struct client *c = ready_head;
+	if (c) {
+		ready_head = c->next_ready;
+		if (ready_head == NULL) {
+			ready_tail = NULL;
+		}
+		c->ready = 0;
+	}
+	return c;
+}
+
+static int backlogged(const struct client *c) {
+	return c->wlen - c->woff > MAX_PENDING_OUTPUT;
+}
+
+/* Watches the client for writability only while it has output the socket would not take, and
+ * for readability only while it is keeping up with its responses and has not hung up. */
+static void update_interest(struct client *c) {
+	struct epoll_event event = { 0 };
+	uint32_t events = (c->hung_up || backlogged(c) ? 0 : EPOLLIN) | (c->woff < c->wlen ? EPOLLOUT : 0);
+	if (c->events == events) {
+		return;
+	}
+	event.events = events;
+	event.data.fd = c->fd;
+	epoll_ctl(epoll_fd, EPOLL_CTL_MOD, c->fd, &event);
+	c->events = events;
+}
+
+/* Writes as much queued output as the socket takes without blocking. Returns -1 if the
+ * connection has failed. */
+static int flush_client(struct client *c) {
+	while (c->woff < c->wlen) {
+		ssize_t n = write(c->fd, c->wbuf + c->woff, c->wlen - c->woff);
+		if (n < 0) {
+			if (errno == EINTR) {
+				continue;
+			}
+			if (errno == EAGAIN || errno == EWOULDBLOCK) {
+				break;
+			}
+			return -1;
+		}
+		c->woff += n;
+	}
+	if (c->woff == c->wlen) {
+		c->woff = c->wlen = 0;
+	}
+	update_interest(c);
+	return 0;
+}
+
+static void accept_clients(void) {
+	struct epoll_event event = { 0 };
+	struct client *c;
+	int fd;
+
+	while ((fd = accept(listen_fd, NULL, NULL)) >= 0) {
+		if (fd >= clients_cap) {
+			int new_cap = clients_cap ? clients_cap : 64;
+			struct client **grown;
+			while (new_cap <= fd) {
+				new_cap *= 2;
+			}
+			grown = realloc(clients, new_cap * sizeof(*clients));
+			if (grown == NULL) {
+				close(fd);
+				continue;
+			}
+			memset(grown + clients_cap, 0, (new_cap - clients_cap) * sizeof(*clients));
+			clients = grown;
+			clients_cap = new_cap;
+		}
+		c = calloc(1, sizeof(*c));
+		event.events = EPOLLIN;
+		event.data.fd = fd;
+		if (c == NULL || set_nonblocking(fd) < 0 || epoll_ctl(epoll_fd, EPOLL_CTL_ADD, fd, &event) < 0) {
+			free(c);
+			close(fd);
+			continue;
+		}
+		c->fd = fd;
+		c->events = EPOLLIN;
+		clients[fd] = c;
+		fprintf(stderr, "accepted connection on descriptor %d\n", fd);
+	}
+}
+
+/* Closes the connection. The client must not be on the ready list. */
+static void drop_client(struct client *c) {
+	fprintf(stderr, "closing connection on descriptor %d\n", c->fd);
+	clients[c->fd] = NULL;
+	close(c->fd);
+	free(c->rbuf);
+	free(c->wbuf);
+	free(c);
+}
+
+/* Reads whatever the socket has. Returns -1 once the client has gone. */
+static int fill_client(struct client *c) {
+	while (1) {
+		ssize_t n;
+		if (reserve(&c->rbuf, &c->rcap, c->rlen, READ_CHUNK) < 0) {
+			return -1;
+		}
+		n = read(c->fd, c->rbuf + c->rlen, c->rcap - c->rlen);
+		if (n > 0) {
+			c->rlen += n;
+		} else if (n == 0) {
+			return -1;
+		} else if (errno == EINTR) {
+			continue;
+		} else {
+			return errno == EAGAIN || errno == EWOULDBLOCK ? 0 : -1;
+		}
+	}
+}
+
+/* Answers a client's HELLO. This server does not compress, so it always picks no codec, which
+ * keeps every payload it is sent uncompressed. */
+static int reply_hello(struct client *c, const struct frame *hello) {
+	char reply[5] = { 0x7f, (char) 0xff, (char) 0xff, (char) 0xff, FRAME_CODEC_NONE };
+	return queue_frame(c, FRAME_TYPE_HELLO, hello->flags & FRAME_FLAG_CHECKSUM,
+	                   hello->request_id, reply, sizeof(reply));
+}
+
+/* Takes the next request from the client's read buffer, answering any HELLOs and PINGs and
+ * skipping any CREDITs before it. Returns 1 with the request in *f, 0 if no whole request has
+ * arrived, or -1 if the client sent something malformed. */
+static int next_request(struct client *c, struct frame *f) {
+	size_t off = 0;
+	int result = 0;
+
+	while (1) {
+		int used = parse_frame((unsigned char *) c->rbuf + off, c->rlen - off, f);
+		if (used <= 0) {
+			result = used;
+			break;
+		}
+		off += used;
+		if (f->type == FRAME_TYPE_HELLO) {
+			result = reply_hello(c, f);
+		} else if (f->type == FRAME_TYPE_PING) {
+			result = queue_frame(c, FRAME_TYPE_PONG, f->flags & FRAME_FLAG_CHECKSUM,
+			                     f->request_id, f->payload, f->length);
+		} else if (f->type == FRAME_TYPE_CREDIT) {
+			/* Each client gets one answer at a time and output is already capped at
+			 * MAX_PENDING_OUTPUT, so credit is not needed; not granting any leaves
+			 * clients unlimited. */
+			result = 0;
+		} else {
+			result = 1;
+			break;
+		}
+		free(f->payload);
+		f->payload = NULL;
+		if (result < 0) {
+			break;
+		}
+	}
+	if (off > 0) {
+		memmove(c->rbuf, c->rbuf + off, c->rlen - off);
+		c->rlen -= off;
+	}
+	return result;
+}
+
+char *read_server(int server, int *client) {
+	struct epoll_event events[MAX_EVENTS];
+	struct frame request;
+	struct client *c;
+	int i, n;
+
+	free(returned_payload);
+	returned_payload = NULL;
+	(void) server;
+	while (1) {
+		// take requests from clients in turn, so a chatty client cannot starve the others
+		while ((c = next_ready()) != NULL) {
+			int found;
+			if (backlogged(c) && !c->closed) {
+				// it is not reading its responses; leave its requests until it catches up
+				continue;
+			}
+			found = c->closed ? -1 : next_request(c, &request);
+			if (found < 0 || (found == 0 && c->hung_up && c->woff == c->wlen) || flush_client(c) < 0) {
+				if (found > 0) {
+					free(request.payload);
+				}
+				drop_client(c);
+				continue;
+			}
+			if (found > 0) {
+				c->request_id = request.request_id;
+				c->request_flags = request.flags;
+				mark_ready(c);
+				*client = c->fd;
+				returned_payload = request.payload;
+				printf("received [%s]\n", returned_payload);
+				return returned_payload;
+			}
+		}
+
+		n = epoll_wait(epoll_fd, events, MAX_EVENTS, -1);
+		if (n < 0) {
+			if (errno == EINTR) {
+				continue;
+			}
+			perror("epoll_wait");
+			return NULL;
+		}
+		for (i = 0; i < n; i++) {
+			int fd = events[i].data.fd;
+			if (fd == listen_fd) {
+				accept_clients();
+				continue;
+			}
+			c = clients[fd];
+			if (c == NULL) {
+				continue;
+			}
+			if ((events[i].events & (EPOLLOUT | EPOLLERR)) && flush_client(c) < 0) {
+				c->closed = 1;
+			}
+			if ((events[i].events & (EPOLLIN | EPOLLHUP)) && !c->closed && !c->hung_up && fill_client(c) < 0) {
+				// requests that arrived before the client hung up are still answered
+				c->hung_up = 1;
+				update_interest(c);
+			}
+			if (c->closed || c->hung_up || c->rlen > 0) {
+				mark_ready(c);
+			}
+		}
 	}
 }
 
 void write_server(int client, char *message) {
-	// send data to the client
-	char messageArr[1024] = { 0 };
-	int bytes_sent;
-	sprintf(messageArr, message);
-	bytes_sent = write(client, messageArr, sizeof(messageArr));
-	if (bytes_sent > 0) {
-		printf("sent [%s]\n", messageArr);
-	}
-}
\ No newline at end of file
+	// queue a response frame holding just the message, tagged with the request's ID
+	struct client *c = client >= 0 && client < clients_cap ? clients[client] : NULL;
+	uint32_t length = strlen(message);
+	if (c == NULL || c->closed) {
+		return;
+	}
+	if (queue_frame(c, FRAME_TYPE_RESPONSE, c->request_flags & FRAME_FLAG_CHECKSUM,
+	                c->request_id, message, length) < 0 || flush_client(c) < 0) {
+		c->closed = 1;
+		mark_ready(c);
+		return;
+	}
+	printf("sent [%s]\n", message);
+}
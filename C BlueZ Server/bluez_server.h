@@ -1,6 +1,56 @@
+#include <stddef.h>
+#include <stdint.h>
+
+/* Building with -DTEST_TCP_PORT=<port> makes the server listen on that TCP port on localhost, and
+ * -DTEST_UNIX_PATH='"<path>"' on an AF_UNIX socket at that path, instead of on RFCOMM. Either way
+ * no SDP record is registered and BlueZ is not needed to build or run, so the native path can be
+ * load-tested on machines without a Bluetooth adapter. */
+#if defined(TEST_TCP_PORT) || defined(TEST_UNIX_PATH)
+#define TEST_TRANSPORT 1
+#else
 #include <bluetooth/sdp_lib.h>
+#endif
+
+/* The wire format shared with the Java server and the Android client (see Frame.java). Every
+ * message is a 12-byte header (version, type, flags, reserved, then the request ID and payload
+ * length as big-endian 32-bit integers), the payload, and a CRC-32 of the payload if
+ * FRAME_FLAG_CHECKSUM is set. */
+#define FRAME_VERSION 1
+#define FRAME_HEADER_LENGTH 12
+#define FRAME_MAX_PAYLOAD (16 * 1024 * 1024)
+#define FRAME_TYPE_REQUEST 1
+#define FRAME_TYPE_RESPONSE 2
+#define FRAME_TYPE_ERROR 3
+#define FRAME_TYPE_HELLO 4
+#define FRAME_TYPE_PING 5
+#define FRAME_TYPE_PONG 6
+#define FRAME_TYPE_CREDIT 7
+#define FRAME_FLAG_CHECKSUM 0x01
+#define FRAME_FLAG_COMPRESSED 0x02
+#define FRAME_CODEC_NONE 0
+
+struct frame {
+	uint8_t type;
+	uint8_t flags;
+	uint32_t request_id;
+	uint32_t length;
+	char *payload; /* NUL-terminated for convenience; owned by the caller */
+};
 
+uint32_t frame_crc32(const unsigned char *buf, size_t len);
+int parse_frame(const unsigned char *buf, size_t len, struct frame *f);
+
+#ifndef TEST_TRANSPORT
 sdp_session_t *register_service(uint8_t rfcomm_channel);
+#endif
+
+/* The server multiplexes any number of clients over one epoll loop. init_server() starts
+ * listening and returns a descriptor for the server, or -1 on failure. read_server() then waits
+ * until any client has sent a whole request, taking clients in turn, and returns its payload
+ * (valid until the next call) with the client's descriptor stored in *client; it returns NULL if
+ * the server itself fails. write_server() answers the request most recently read from that
+ * client, sending just the message's bytes; output the socket does not take at once is sent
+ * from read_server() as the client drains it. */
 int init_server();
-char *read_server(int client);
+char *read_server(int server, int *client);
 void write_server(int client, char *message);
\ No newline at end of file